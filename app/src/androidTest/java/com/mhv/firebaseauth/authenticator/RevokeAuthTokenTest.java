@@ -0,0 +1,64 @@
+package com.mhv.firebaseauth.authenticator;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Base64;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Revokes tokens the way logging out does, through the process wide Authenticator.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RevokeAuthTokenTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Same payload as AuthUtils.generateFirebaseAuthToken, exp included as a string.
+    // The signing key bundled with AuthUtils is a placeholder, so the signature is a
+    // dummy; the authenticator never checks it.
+    private static String mintedToken(String userName) {
+        final long nowSeconds = System.currentTimeMillis() / 1000;
+        final String payload = "{"
+                + "\"iss\":\"firebase-adminsdk-wswac@fir-auth-dfed0.iam.gserviceaccount.com\",\n"
+                + "\"sub\":\"firebase-adminsdk-wswac@fir-auth-dfed0.iam.gserviceaccount.com\",\n"
+                + "\"uid\":\"" + userName + "\",\n"
+                + "\"iat\":\"" + nowSeconds + "\",\n"
+                + "\"exp\":\"" + (nowSeconds + 60 * 60) + "\"\n"
+                + "}";
+        return encode("{\"typ\":\"JWT\",\"alg\":\"RS256\"}") + "." + encode(payload) + ".c2ln";
+    }
+
+    private static String encode(String json) {
+        return Base64.encodeToString(json.getBytes(UTF_8),
+                Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP);
+    }
+
+    @Test
+    public void mintedTokenCanBeRevoked() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final Authenticator authenticator = AuthenticatorService.getAuthenticator(context);
+        final String token = mintedToken("revoke-test-" + System.nanoTime());
+
+        authenticator.revokeAuthToken(token);
+
+        assertTrue(authenticator.isRevoked(token));
+    }
+
+    @Test
+    public void tokenWithoutExpCanBeRevoked() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final Authenticator authenticator = AuthenticatorService.getAuthenticator(context);
+        final String token = "opaque-token-" + System.nanoTime();
+
+        authenticator.revokeAuthToken(token);
+
+        assertTrue(authenticator.isRevoked(token));
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.mhv.firebaseauth;
 
+import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.app.IntentService;
 import android.content.Intent;
@@ -27,9 +28,34 @@ import android.util.Log;
 
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.auth.AuthResult;
 import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseAuthUserCollisionException;
+import com.google.firebase.auth.FirebaseUser;
+import com.mhv.firebaseauth.authenticator.AuthTokenMinter;
+import com.mhv.firebaseauth.authenticator.AuthenticatorService;
+import com.mhv.firebaseauth.profiling.AllocationProfiler;
+import com.mhv.firebaseauth.profiling.DebugProfile;
+import com.mhv.firebaseauth.registration.KnownEmails;
+import com.mhv.firebaseauth.registration.RegistrationPipeline;
+import com.mhv.firebaseauth.token.FirebaseIdTokenSource;
+import com.mhv.firebaseauth.token.IdTokenProvider;
+import com.mhv.firebaseauth.trace.AuthTrace;
+import com.mhv.firebaseauth.trace.AuthTraceRecorder;
+import com.mhv.firebaseauth.trace.DebugTrace;
+import com.mhv.firebaseauth.util.AdaptiveTimeout;
+import com.mhv.firebaseauth.util.AuthMetrics;
 import com.mhv.firebaseauth.util.AuthUtils;
+import com.mhv.firebaseauth.util.HedgedRequests;
+import com.mhv.firebaseauth.util.RateLimiter;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AuthService extends IntentService {
 
@@ -37,6 +63,7 @@ public class AuthService extends IntentService {
 
     public static final String ACTION_LOGIN = "auth_action_login";
     public static final String ACTION_REGISTER = "auth_action_register";
+    public static final String ACTION_LOGOUT = "auth_action_logout";
 
     public static final String EXTRA_USER_NAME = "extra_user_name";
     public static final String EXTRA_USER_EMAIL = "extra_user_email";
@@ -44,12 +71,77 @@ public class AuthService extends IntentService {
 
     public static final String EXTRA_AUTH_TOKEN = "extra_auth_token";
 
+    // Sign-in latency has a long tail. Time it out based on what we've seen lately and,
+    // since signing in twice with the same custom token is harmless, hedge slow calls.
+    private static final HedgedRequests sSignInRequests = new HedgedRequests("backend.sign_in",
+            new AdaptiveTimeout(50, 2.0, TimeUnit.MILLISECONDS.toNanos(200),
+                    TimeUnit.SECONDS.toNanos(30)), true, 0.1);
+
+    // Creating a user is not idempotent so it's never hedged, instead the token is
+    // minted while the backend call is in flight.
+    private static final RegistrationPipeline sRegistrations = new RegistrationPipeline(
+            new FirebaseRegistrationBackend(),
+            new AuthTokenMinter.Mint() {
+                @Override
+                public String mint(String userName) {
+                    return AuthUtils.generateFirebaseAuthToken(userName);
+                }
+            },
+            new KnownEmails(),
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "RegistrationMint");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+
+    private static final AtomicBoolean sKnownEmailsSeeded = new AtomicBoolean();
+
     private FirebaseAuth mAuth;
 
     public AuthService() {
         super("AuthService");
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        DebugTrace.ensureStarted(this);
+        DebugProfile.ensureStarted(this);
+    }
+
+    /**
+     * Seeds the known emails with the accounts on this device, which are taken, the
+     * first time a registration comes in. Later service instances reuse them.
+     */
+    private void ensureKnownEmailsSeeded() {
+        if (!sKnownEmailsSeeded.compareAndSet(false, true)) {
+            return;
+        }
+        final KnownEmails knownEmails = sRegistrations.getKnownEmails();
+        for (Account account : AccountManager.get(this).getAccountsByType(
+                Constants.ACCOUNT_TYPE)) {
+            knownEmails.add(account.name);
+        }
+        AllocationProfiler.getInstance().registerCache("registration.known_emails",
+                new AllocationProfiler.Cache() {
+                    @Override
+                    public AllocationProfiler.CacheSize measure() {
+                        return new AllocationProfiler.CacheSize(knownEmails.size(), -1);
+                    }
+                });
+    }
+
+    @Override
+    public void onDestroy() {
+        // The queue is empty, a good point to save what's been profiled so far. The
+        // report is written in the background, onDestroy runs on the main thread.
+        DebugProfile.export(this);
+        super.onDestroy();
+    }
+
     @Override
     protected void onHandleIntent(@Nullable Intent intent) {
         if (intent == null) {
@@ -61,18 +153,57 @@ public class AuthService extends IntentService {
             return;
         }
 
+        // Logging out only drops local state, it must always go through.
+        if (ACTION_LOGOUT.equals(action)) {
+            logout(intent);
+            return;
+        }
+
+        // Every request mints a token and hits the backend, so throttle
+        // callers before doing any of that work.
+        final String userEmail = intent.getStringExtra(EXTRA_USER_EMAIL);
+        if (!RateLimiter.getInstance().tryAcquire(userEmail)) {
+            rejectRateLimited(action, userEmail);
+            return;
+        }
+
         mAuth = FirebaseAuth.getInstance();
 
-        switch (action) {
-            case ACTION_REGISTER:
-                register(intent);
-                break;
-            case ACTION_LOGIN:
-                login(intent);
-                break;
+        final AllocationProfiler.Scope allocations = AllocationProfiler.getInstance().begin(
+                ACTION_REGISTER.equals(action)
+                        ? AllocationProfiler.OP_REGISTER : AllocationProfiler.OP_LOGIN);
+        try {
+            switch (action) {
+                case ACTION_REGISTER:
+                    register(intent);
+                    break;
+                case ACTION_LOGIN:
+                    login(intent);
+                    break;
+            }
+        } finally {
+            allocations.end();
         }
     }
 
+    private void rejectRateLimited(String action, String userEmail) {
+        Log.w(TAG, "Rate limited - action: " + action + " email: " + userEmail);
+
+        final boolean isRegister = ACTION_REGISTER.equals(action);
+        AuthMetrics.getInstance().increment(isRegister
+                ? AuthMetrics.REGISTER_RATE_LIMITED : AuthMetrics.LOGIN_RATE_LIMITED);
+
+        final AuthTraceRecorder recorder = AuthTraceRecorder.getInstance();
+        recorder.record(isRegister ? AuthTrace.TYPE_REGISTER : AuthTrace.TYPE_LOGIN,
+                AuthTrace.OUTCOME_RATE_LIMITED, userEmail, recorder.now());
+
+        final Intent result = new Intent(action);
+        result.putExtra(AccountManager.KEY_ERROR_CODE, Constants.ERROR_CODE_RATE_LIMITED);
+        result.putExtra(AccountManager.KEY_ERROR_MESSAGE,
+                "Too many attempts, please try again later.");
+        LocalBroadcastManager.getInstance(this).sendBroadcast(result);
+    }
+
     private void register(Intent registrationIntent) {
         final String userName = registrationIntent.getStringExtra(EXTRA_USER_NAME);
         final String userEmail = registrationIntent.getStringExtra(EXTRA_USER_EMAIL);
@@ -81,37 +212,45 @@ public class AuthService extends IntentService {
         Log.d(TAG, "Registering - user: " + userName + " email: " + userEmail);
 
         final Bundle registerData = new Bundle();
+        final long traceStart = AuthTraceRecorder.getInstance().now();
 
-        mAuth.createUserWithEmailAndPassword(userEmail, userPassword)
-                .addOnCompleteListener(new OnCompleteListener<AuthResult>() {
+        ensureKnownEmailsSeeded();
+        final RegistrationPipeline.Result registration =
+                sRegistrations.register(userName, userEmail, userPassword);
 
-                    @Override
-                    public void onComplete(@NonNull Task<AuthResult> task) {
-                        if (task.isSuccessful()) {
-                            String authToken = AuthUtils.generateFirebaseAuthToken(userName);
-
-                            registerData.putString(AccountManager.KEY_ACCOUNT_NAME, userEmail);
-                            registerData.putString(AccountManager.KEY_ACCOUNT_TYPE,
-                                    Constants.ACCOUNT_TYPE);
-                            registerData.putString(AccountManager.KEY_AUTHTOKEN, authToken);
-                            registerData.putString(AccountManager.KEY_PASSWORD, userPassword);
-
-                            Log.d(TAG, "Registration successful - user: " + userName
-                                    + " email: " + userEmail + " token: " + authToken);
-
-                            // TODO: Also broadcast errors!
-                            final Intent result = new Intent(ACTION_REGISTER);
-                            result.putExtras(registerData);
-                            LocalBroadcastManager
-                                    .getInstance(AuthService.this).sendBroadcast(result);
-
-                        } else {
-                            Log.e(TAG, "Registration failed", task.getException());
-                            registerData.putString(AccountManager.KEY_ERROR_MESSAGE,
-                                    task.getException().getMessage());
-                        }
-                    }
-                });
+        if (registration.isSuccessful()) {
+            // A new user is signed in right away, keep them for ID tokens.
+            final FirebaseUser user = mAuth.getCurrentUser();
+            if (user != null) {
+                IdTokenProvider.getInstance().setSource(new FirebaseIdTokenSource(user));
+            }
+
+            registerData.putString(AccountManager.KEY_ACCOUNT_NAME, userEmail);
+            registerData.putString(AccountManager.KEY_ACCOUNT_TYPE, Constants.ACCOUNT_TYPE);
+            registerData.putString(AccountManager.KEY_AUTHTOKEN, registration.getAuthToken());
+            registerData.putString(AccountManager.KEY_PASSWORD, userPassword);
+
+            Log.d(TAG, "Registration successful - user: " + userName
+                    + " email: " + userEmail + " token: " + registration.getAuthToken());
+
+            AuthTraceRecorder.getInstance().record(AuthTrace.TYPE_REGISTER,
+                    AuthTrace.OUTCOME_SUCCESS, userEmail, traceStart);
+        } else {
+            Log.e(TAG, "Registration failed - " + registration.getErrorMessage());
+            AuthTraceRecorder.getInstance().record(AuthTrace.TYPE_REGISTER,
+                    AuthTrace.OUTCOME_FAILURE, userEmail, traceStart);
+            registerData.putInt(AccountManager.KEY_ERROR_CODE, registration.getErrorCode());
+            registerData.putString(AccountManager.KEY_ERROR_MESSAGE,
+                    registration.getErrorMessage());
+        }
+
+        final Intent result = new Intent(ACTION_REGISTER);
+        result.putExtras(registerData);
+        LocalBroadcastManager.getInstance(this).sendBroadcast(result);
+
+        if (registration.isSuccessful()) {
+            prefetchIdToken();
+        }
     }
 
     private void login(Intent loginIntent) {
@@ -122,34 +261,133 @@ public class AuthService extends IntentService {
         Log.d(TAG, "Login - user: " + userEmail + " authToken: " + authToken);
 
         final Bundle loginData = new Bundle();
+        final long traceStart = AuthTraceRecorder.getInstance().now();
 
         if (!TextUtils.isEmpty(authToken)) {
-            mAuth.signInWithCustomToken(authToken)
-                    .addOnCompleteListener(new OnCompleteListener<AuthResult>() {
-
-                        @Override
-                        public void onComplete(@NonNull Task<AuthResult> task) {
-                            if (task.isSuccessful()) {
-                                loginData.putString(AccountManager.KEY_ACCOUNT_NAME, userEmail);
-                                loginData.putString(AccountManager.KEY_ACCOUNT_TYPE,
-                                        Constants.ACCOUNT_TYPE);
-                                loginData.putString(AccountManager.KEY_AUTHTOKEN, authToken);
-                                loginData.putString(AccountManager.KEY_PASSWORD, userPassword);
-
-                                Log.d(TAG, "Registration successful - user: " + userEmail
-                                        + " token: " + authToken);
-
-                            } else {
-                                Log.e(TAG, "Login failed", task.getException());
-                                loginData.putString(AccountManager.KEY_ERROR_MESSAGE,
-                                        task.getException().getMessage());
+            boolean signedIn = false;
+            try {
+                final AuthResult authResult = sSignInRequests.execute(
+                        new HedgedRequests.Attempt<AuthResult>() {
+                            @Override
+                            public void start(HedgedRequests.Callback<AuthResult> callback) {
+                                mAuth.signInWithCustomToken(authToken)
+                                        .addOnCompleteListener(new TaskCallback<>(callback));
                             }
-                        }
-                    });
+                        });
+
+                IdTokenProvider.getInstance().setSource(
+                        new FirebaseIdTokenSource(authResult.getUser()));
+                signedIn = true;
+
+                loginData.putString(AccountManager.KEY_ACCOUNT_NAME, userEmail);
+                loginData.putString(AccountManager.KEY_ACCOUNT_TYPE, Constants.ACCOUNT_TYPE);
+                loginData.putString(AccountManager.KEY_AUTHTOKEN, authToken);
+                loginData.putString(AccountManager.KEY_PASSWORD, userPassword);
+
+                Log.d(TAG, "Registration successful - user: " + userEmail
+                        + " token: " + authToken);
+
+                AuthTraceRecorder.getInstance().record(AuthTrace.TYPE_LOGIN,
+                        AuthTrace.OUTCOME_SUCCESS, userEmail, traceStart);
+
+            } catch (Exception e) {
+                Log.e(TAG, "Login failed", e);
+                AuthTraceRecorder.getInstance().record(AuthTrace.TYPE_LOGIN,
+                        AuthTrace.OUTCOME_FAILURE, userEmail, traceStart);
+                loginData.putString(AccountManager.KEY_ERROR_MESSAGE, e.getMessage());
+            }
 
             final Intent result = new Intent(ACTION_LOGIN);
             result.putExtras(loginData);
             LocalBroadcastManager.getInstance(this).sendBroadcast(result);
+
+            if (signedIn) {
+                prefetchIdToken();
+            }
+        }
+    }
+
+    /**
+     * Fetches the new user's first ID token while we're on the worker thread anyway,
+     * after the result went out so the UI doesn't wait for it. Later callers of
+     * {@link IdTokenProvider} then find it cached.
+     */
+    private static void prefetchIdToken() {
+        try {
+            IdTokenProvider.getInstance().getToken();
+        } catch (Exception e) {
+            // Not fatal, the next getToken() call fetches it instead.
+            Log.w(TAG, "Unable to prefetch ID token", e);
+        }
+    }
+
+    private void logout(Intent logoutIntent) {
+        final String userEmail = logoutIntent.getStringExtra(EXTRA_USER_EMAIL);
+        final String authToken = logoutIntent.getStringExtra(EXTRA_AUTH_TOKEN);
+
+        Log.d(TAG, "Logout - user: " + userEmail);
+
+        // The token may have been copied elsewhere, make sure getAuthToken never
+        // hands it out again.
+        if (!TextUtils.isEmpty(authToken)) {
+            try {
+                AuthenticatorService.getAuthenticator(this).revokeAuthToken(authToken);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to revoke token of " + userEmail, e);
+            }
+        }
+        // Without the password getAuthToken asks the user to log in again.
+        if (!TextUtils.isEmpty(userEmail)) {
+            AccountManager.get(this).clearPassword(
+                    new Account(userEmail, Constants.ACCOUNT_TYPE));
+        }
+        FirebaseAuth.getInstance().signOut();
+        IdTokenProvider.getInstance().clear();
+
+        LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent(ACTION_LOGOUT));
+    }
+
+    /**
+     * Creates users through FirebaseAuth. Only called from the IntentService worker
+     * thread, so it's fine to block on the task.
+     */
+    private static class FirebaseRegistrationBackend implements RegistrationPipeline.Backend {
+
+        @Override
+        public void createUser(String email, String password) throws Exception {
+            try {
+                Tasks.await(FirebaseAuth.getInstance()
+                        .createUserWithEmailAndPassword(email, password));
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+
+        @Override
+        public boolean isEmailTaken(Exception e) {
+            return e instanceof FirebaseAuthUserCollisionException;
+        }
+    }
+
+    /**
+     * Forwards the outcome of a Firebase task to a {@link HedgedRequests.Callback}.
+     */
+    private static class TaskCallback<T> implements OnCompleteListener<T> {
+
+        private final HedgedRequests.Callback<T> mCallback;
+
+        TaskCallback(HedgedRequests.Callback<T> callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void onComplete(@NonNull Task<T> task) {
+            if (task.isSuccessful()) {
+                mCallback.onSuccess(task.getResult());
+            } else {
+                mCallback.onFailure(task.getException());
+            }
         }
     }
 }
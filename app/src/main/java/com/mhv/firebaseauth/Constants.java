@@ -19,4 +19,12 @@ public class Constants {
 
     public static final String ACCOUNT_TYPE = "com.mhv.firebaseauth";
     public static final String AUTH_TOKEN_TYPE = "com.mhv.firebaseauth.token";
+
+    // Returned in AccountManager.KEY_ERROR_CODE when a request is rejected by the RateLimiter.
+    public static final int ERROR_CODE_RATE_LIMITED = 100;
+
+    // Returned in AccountManager.KEY_ERROR_CODE when a registration is turned down.
+    public static final int ERROR_CODE_INVALID_INPUT = 101;
+    public static final int ERROR_CODE_EMAIL_TAKEN = 102;
+    public static final int ERROR_CODE_REGISTRATION_FAILED = 103;
 }
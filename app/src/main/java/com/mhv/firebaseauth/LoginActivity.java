@@ -31,6 +31,10 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.mhv.firebaseauth.authenticator.AuthenticatorService;
+import com.mhv.firebaseauth.profiling.AllocationProfiler;
+import com.mhv.firebaseauth.registration.RegistrationValidator;
+
 public class LoginActivity extends AccountAuthenticatorActivity
         implements View.OnClickListener {
 
@@ -111,7 +115,7 @@ public class LoginActivity extends AccountAuthenticatorActivity
                 .toString().trim();
 
         if ((!TextUtils.isEmpty(userEmail) && !TextUtils.isEmpty(userPassword))
-                && userPassword.length() > 6) {
+                && userPassword.length() >= RegistrationValidator.MIN_PASSWORD_LENGTH) {
 
             Intent intent = new Intent(this, AuthService.class);
             intent.setAction(AuthService.ACTION_LOGIN);
@@ -124,33 +128,41 @@ public class LoginActivity extends AccountAuthenticatorActivity
             startService(intent);
         } else {
             Toast.makeText(this, "Please enter a valid username/password. " +
-                    "Password must be at least 6 characters.", Toast.LENGTH_LONG).show();
+                    "Password must be at least " + RegistrationValidator.MIN_PASSWORD_LENGTH
+                    + " characters.", Toast.LENGTH_LONG).show();
         }
     }
 
     private void completeLogin(Intent intent) {
-        String accountName = intent
-                .getStringExtra(AccountManager.KEY_ACCOUNT_NAME);
+        final AllocationProfiler.Scope allocations =
+                AllocationProfiler.getInstance().begin(AllocationProfiler.OP_COMPLETE_LOGIN);
+        try {
+            String accountName = intent
+                    .getStringExtra(AccountManager.KEY_ACCOUNT_NAME);
 
-        String accountPassword = intent
-                .getStringExtra(AccountManager.KEY_PASSWORD);
+            String accountPassword = intent
+                    .getStringExtra(AccountManager.KEY_PASSWORD);
 
-        final Account account = new Account(accountName,
-                intent.getStringExtra(AccountManager.KEY_ACCOUNT_TYPE));
+            final Account account = new Account(accountName,
+                    intent.getStringExtra(AccountManager.KEY_ACCOUNT_TYPE));
 
-        if (getIntent().getBooleanExtra(ARG_IS_ADDING_NEW_ACCOUNT, false)) {
-            String authToken = intent.getStringExtra(AccountManager.KEY_AUTHTOKEN);
+            if (getIntent().getBooleanExtra(ARG_IS_ADDING_NEW_ACCOUNT, false)) {
+                String authToken = intent.getStringExtra(AccountManager.KEY_AUTHTOKEN);
 
-            mAccountManager.addAccountExplicitly(account, accountPassword, null);
-            mAccountManager.setAuthToken(account, Constants.AUTH_TOKEN_TYPE, authToken);
-        } else {
-            mAccountManager.setPassword(account, accountPassword);
-        }
+                mAccountManager.addAccountExplicitly(account, accountPassword, null);
+                mAccountManager.setAuthToken(account, Constants.AUTH_TOKEN_TYPE, authToken);
+                AuthenticatorService.getAuthenticator(this).saveSnapshot(accountName, authToken);
+            } else {
+                mAccountManager.setPassword(account, accountPassword);
+            }
 
-        setAccountAuthenticatorResult(intent.getExtras());
-        setResult(RESULT_OK, intent);
+            setAccountAuthenticatorResult(intent.getExtras());
+            setResult(RESULT_OK, intent);
 
-        finish();
+            finish();
+        } finally {
+            allocations.end();
+        }
     }
 
     @Override
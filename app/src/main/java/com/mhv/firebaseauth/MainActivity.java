@@ -15,13 +15,18 @@
  */
 package com.mhv.firebaseauth;
 
+import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AccountManagerCallback;
 import android.accounts.AccountManagerFuture;
 import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Bundle;
+import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.Menu;
@@ -29,6 +34,10 @@ import android.view.MenuItem;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.mhv.firebaseauth.authenticator.Authenticator;
+import com.mhv.firebaseauth.authenticator.AuthenticatorService;
+import com.mhv.firebaseauth.token.TokenSnapshot;
+
 import java.io.IOException;
 
 import static com.mhv.firebaseauth.Constants.ACCOUNT_TYPE;
@@ -49,6 +58,19 @@ public class MainActivity extends AppCompatActivity {
 
     private TextView mInfoTextView;
 
+    // The account and token currently shown, null until AccountManager answers.
+    private String mAccountName;
+    private String mAuthToken;
+
+    private final BroadcastReceiver mLogoutReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // The password is gone, so this sends the user back to log in.
+            mInfoTextView.setText(null);
+            requestAuthToken(AccountManager.get(MainActivity.this));
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -61,10 +83,63 @@ public class MainActivity extends AppCompatActivity {
         // have to choose from existing accounts. The same goes for the auth token type.
         // The GetAuthTokenCallback helps us know when we have a result.
         final AccountManager accountManager = AccountManager.get(this);
+
+        // Show what we knew last time right away. The AccountManager answer below
+        // replaces it, or sends the user to log in, once it arrives.
+        showCachedAccount(accountManager);
+
+        requestAuthToken(accountManager);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        LocalBroadcastManager.getInstance(this)
+                .registerReceiver(mLogoutReceiver, new IntentFilter(AuthService.ACTION_LOGOUT));
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mLogoutReceiver);
+    }
+
+    private void requestAuthToken(AccountManager accountManager) {
+        mAccountName = null;
+        mAuthToken = null;
         accountManager.getAuthTokenByFeatures(ACCOUNT_TYPE, AUTH_TOKEN_TYPE,
                 null, this, null, null, new GetAuthTokenCallback(), null);
     }
 
+    private void logout() {
+        if (mAccountName == null) {
+            return;
+        }
+        final Intent intent = new Intent(this, AuthService.class);
+        intent.setAction(AuthService.ACTION_LOGOUT);
+        intent.putExtra(AuthService.EXTRA_USER_EMAIL, mAccountName);
+        intent.putExtra(AuthService.EXTRA_AUTH_TOKEN, mAuthToken);
+        startService(intent);
+    }
+
+    private void showCachedAccount(AccountManager accountManager) {
+        final TokenSnapshot snapshot = AuthenticatorService.getAuthenticator(this)
+                .readSnapshot();
+        final long now = System.currentTimeMillis();
+        // The account may have been removed from the system settings since the
+        // snapshot was written, only trust entries AccountManager still knows about.
+        for (Account account : accountManager.getAccountsByType(ACCOUNT_TYPE)) {
+            final TokenSnapshot.Entry entry = snapshot.get(account.name);
+            if (entry != null && !entry.isExpired(now)) {
+                // The snapshot only has a fingerprint of the token, the token itself
+                // is shown once AccountManager hands it over.
+                mInfoTextView.setText(getString(R.string.main_info_cached_message,
+                        entry.getEmail()));
+                return;
+            }
+        }
+    }
+
     private class GetAuthTokenCallback implements AccountManagerCallback<Bundle> {
 
         @Override
@@ -86,8 +161,21 @@ public class MainActivity extends AppCompatActivity {
                     String authToken = bundle.getString(AccountManager.KEY_AUTHTOKEN);
                     final String accountName = bundle.getString(AccountManager.KEY_ACCOUNT_NAME);
 
+                    // Keep the snapshot in step with whatever AccountManager handed out.
+                    final Authenticator authenticator =
+                            AuthenticatorService.getAuthenticator(MainActivity.this);
+                    final TokenSnapshot.Entry cached =
+                            authenticator.readSnapshot().get(accountName);
+                    if (cached == null || !cached.matches(authToken)) {
+                        authenticator.saveSnapshot(accountName, authToken);
+                    }
+
+                    mAccountName = accountName;
+                    mAuthToken = authToken;
+
                     // TODO: In a real app you would use the auth token for something...
-                    // Here we just display it as it is.
+                    // Here we just display it as it is. Requests to a backend should go
+                    // through net.AuthInterceptor, which attaches and refreshes it.
                     mInfoTextView.setText(getString(R.string.main_info_message,
                             accountName, authToken));
                 }
@@ -110,7 +198,8 @@ public class MainActivity extends AppCompatActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.action_logout:
-                return false;
+                logout();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -31,6 +31,8 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.mhv.firebaseauth.registration.RegistrationValidator;
+
 /**
  * In charge of the Sign up process. Since it's not an AuthenticatorActivity decendent,
  * it returns the result back to the calling activity, which is an AuthenticatorActivity,
@@ -117,21 +119,22 @@ public class RegistrationActivity extends AppCompatActivity {
         String userPassword = mUserPasswordView.getText()
                 .toString().trim();
 
-        if ((!TextUtils.isEmpty(userEmail) && !TextUtils.isEmpty(userPassword))
-                && userPassword.length() > 6) {
+        // Checked here, before AuthService takes a rate limit permit or starts minting
+        // a token. Backend problems come back through mAuthReceiver.
+        final String invalid = RegistrationValidator.validate(userName, userEmail, userPassword);
+        if (invalid != null) {
+            Toast.makeText(this, invalid, Toast.LENGTH_LONG).show();
+            return;
+        }
 
-            Intent intent = new Intent(this, AuthService.class);
-            intent.setAction(AuthService.ACTION_REGISTER);
+        Intent intent = new Intent(this, AuthService.class);
+        intent.setAction(AuthService.ACTION_REGISTER);
 
-            intent.putExtra(AuthService.EXTRA_USER_NAME, userName);
-            intent.putExtra(AuthService.EXTRA_USER_EMAIL, userEmail);
-            intent.putExtra(AuthService.EXTRA_USER_PASSWORD, userPassword);
+        intent.putExtra(AuthService.EXTRA_USER_NAME, userName);
+        intent.putExtra(AuthService.EXTRA_USER_EMAIL, userEmail);
+        intent.putExtra(AuthService.EXTRA_USER_PASSWORD, userPassword);
 
-            startService(intent);
-        } else {
-            Toast.makeText(this, "Please enter a valid username/password. " +
-                    "Password must be at least 6 characters.", Toast.LENGTH_LONG).show();
-        }
+        startService(intent);
     }
 
     private void finishRegistration(Intent intent) {
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.authenticator;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs authenticator work on a worker thread and answers the caller exactly once, also
+ * when the work throws. A caller that is never answered keeps waiting on its binder
+ * call until AccountManager gives up on it. Errors are answered too and then rethrown,
+ * so they still reach the thread's uncaught exception handler.
+ */
+class AsyncAnswer {
+
+    interface Answer<T> {
+        void onResult(T result);
+
+        void onFailure(Throwable t);
+    }
+
+    static <T> void submit(Executor executor, final Callable<T> work, final Answer<T> answer) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final T result;
+                try {
+                    result = work.call();
+                } catch (Throwable t) {
+                    answer.onFailure(t);
+                    if (t instanceof Error) {
+                        throw (Error) t;
+                    }
+                    return;
+                }
+                answer.onResult(result);
+            }
+        });
+    }
+
+    private AsyncAnswer() {
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.authenticator;
+
+import com.mhv.firebaseauth.util.SingleFlight;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Returns the cached auth token of an account, minting and caching one if there is
+ * none. Concurrent callers for the same account share a single mint, and the new token
+ * is cached before that mint completes, so a caller that missed the cache just before
+ * it was filled finds it on its second look instead of minting again.
+ */
+public class AuthTokenMinter {
+
+    /**
+     * Where tokens are cached, the AccountManager in the app.
+     */
+    public interface Store {
+        String peek(String accountName);
+
+        void put(String accountName, String authToken);
+    }
+
+    public interface Mint {
+        String mint(String accountName) throws Exception;
+    }
+
+    private final Store mStore;
+    private final Mint mMint;
+    private final SingleFlight<String, String> mFlights = new SingleFlight<>();
+
+    public AuthTokenMinter(Store store, Mint mint) {
+        mStore = store;
+        mMint = mint;
+    }
+
+    public String getOrMint(final String accountName) throws Exception {
+        return mFlights.execute(accountName, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                final String cached = mStore.peek(accountName);
+                if (cached != null && !cached.isEmpty()) {
+                    return cached;
+                }
+
+                final String minted = mMint.mint(accountName);
+                if (minted != null) {
+                    mStore.put(accountName, minted);
+                }
+                return minted;
+            }
+        });
+    }
+}
@@ -27,23 +27,222 @@ import android.util.Log;
 
 import com.mhv.firebaseauth.LoginActivity;
 import com.mhv.firebaseauth.Constants;
+import com.mhv.firebaseauth.profiling.AllocationProfiler;
+import com.mhv.firebaseauth.token.RevocationList;
+import com.mhv.firebaseauth.token.TokenSnapshot;
+import com.mhv.firebaseauth.token.TokenSnapshotStore;
+import com.mhv.firebaseauth.trace.AuthTrace;
+import com.mhv.firebaseauth.trace.AuthTraceRecorder;
+import com.mhv.firebaseauth.util.AuthMetrics;
 import com.mhv.firebaseauth.util.AuthUtils;
+import com.mhv.firebaseauth.util.RateLimiter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.mhv.firebaseauth.Constants.AUTH_TOKEN_TYPE;
 
+/**
+ * A single instance lives for the whole process (see {@link AuthenticatorService}).
+ *
+ * getAuthToken answers cached tokens straight from the binder thread. Anything slower
+ * (reading the password, minting a token) runs on a small worker pool and the result
+ * is delivered later through the {@link AccountAuthenticatorResponse}, so a slow mint
+ * doesn't tie up the binder threads other AccountManager callers are waiting on.
+ *
+ * Tokens we mint, and the one set on login, are also recorded in a
+ * {@link TokenSnapshotStore}, which lets
+ * the app show the signed in account on startup and lets us spot expired tokens
+ * without decoding them.
+ */
 public class Authenticator extends AbstractAccountAuthenticator {
 
+    private static final int WORKER_THREADS = 2;
+
+    private static final String REVOCATION_FILE = "revoked_tokens";
+    private static final int EXPECTED_REVOCATIONS = 1024;
+    // Custom tokens live at most an hour, see AuthUtils.
+    private static final long MAX_TOKEN_LIFETIME_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final String SNAPSHOT_FILE = "token_snapshot";
+
     private String TAG = "Authenticator";
     private final Context mContext;
 
+    private final ExecutorService mWorkers = Executors.newFixedThreadPool(WORKER_THREADS,
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "Authenticator-" + mCount.incrementAndGet());
+                }
+            });
+
+    // Loaded on a worker, see revocations().
+    private volatile RevocationList mRevocations;
+    private final AuthTokenMinter mMinter;
+    private final TokenSnapshotStore mSnapshots;
+
     public Authenticator(Context context) {
         super(context);
         this.mContext = context;
+        this.mSnapshots = new TokenSnapshotStore(new File(context.getFilesDir(), SNAPSHOT_FILE));
+        registerCaches();
+        this.mMinter = new AuthTokenMinter(new AccountManagerStore(), new AuthTokenMinter.Mint() {
+            @Override
+            public String mint(String accountName) {
+                return AuthUtils.generateFirebaseAuthToken(accountName);
+            }
+        });
+
+        // The constructor may run on the main thread (MainActivity), so the file is
+        // read on a worker, usually before the first getAuthToken needs it.
+        mWorkers.execute(new Runnable() {
+            @Override
+            public void run() {
+                revocations();
+            }
+        });
+    }
+
+    private void registerCaches() {
+        final AllocationProfiler profiler = AllocationProfiler.getInstance();
+        profiler.registerCache("authenticator.revocations", new AllocationProfiler.Cache() {
+            @Override
+            public AllocationProfiler.CacheSize measure() {
+                final RevocationList revocations = mRevocations;
+                return revocations == null ? new AllocationProfiler.CacheSize(0, 0)
+                        : new AllocationProfiler.CacheSize(revocations.size(),
+                                revocations.sizeInBytes());
+            }
+        });
+        profiler.registerCache("authenticator.token_snapshot", new AllocationProfiler.Cache() {
+            @Override
+            public AllocationProfiler.CacheSize measure() {
+                final List<TokenSnapshot.Entry> entries = readSnapshot().getEntries();
+                long bytes = 0;
+                for (TokenSnapshot.Entry entry : entries) {
+                    // Two bytes per char, plus the expiry and token fingerprint.
+                    bytes += (entry.getEmail().length() + entry.getUid().length()) * 2 + 24;
+                }
+                return new AllocationProfiler.CacheSize(entries.size(), bytes);
+            }
+        });
+    }
+
+    /**
+     * Returns the revocation list, loading it on first use. Blocks while another
+     * thread is loading it, so never call this from the main thread.
+     */
+    private RevocationList revocations() {
+        RevocationList revocations = mRevocations;
+        if (revocations == null) {
+            synchronized (this) {
+                revocations = mRevocations;
+                if (revocations == null) {
+                    revocations = loadRevocations();
+                    mRevocations = revocations;
+                }
+            }
+        }
+        return revocations;
+    }
+
+    private RevocationList loadRevocations() {
+        try {
+            return RevocationList.loadOrReset(new File(mContext.getFilesDir(), REVOCATION_FILE),
+                    EXPECTED_REVOCATIONS, 0.01, System.currentTimeMillis());
+        } catch (IOException e) {
+            // Not even a fresh file could be written. Better to keep serving tokens
+            // than to lock every user out.
+            Log.e(TAG, "Unable to load revoked tokens", e);
+            return RevocationList.inMemory(EXPECTED_REVOCATIONS, 0.01);
+        }
+    }
+
+    /**
+     * Revokes {@code authToken} before it expires and removes it from the
+     * AccountManager cache. Does disk I/O, so call it from a worker thread.
+     */
+    public void revokeAuthToken(String authToken) throws IOException {
+        long expiresAt;
+        try {
+            expiresAt = TokenSnapshot.expiresAtMillis(authToken);
+        } catch (IOException e) {
+            // Can't tell when it expires, keep it as long as any token we mint lives.
+            expiresAt = System.currentTimeMillis() + MAX_TOKEN_LIFETIME_MILLIS;
+        }
+        revocations().revoke(authToken, expiresAt);
+        AccountManager.get(mContext).invalidateAuthToken(Constants.ACCOUNT_TYPE, authToken);
+        for (TokenSnapshot.Entry entry : readSnapshot().getEntries()) {
+            if (entry.matches(authToken)) {
+                mSnapshots.remove(entry.getEmail());
+            }
+        }
+    }
+
+    /**
+     * @return whether {@code authToken} was revoked. May wait for the revocation list
+     * to load, so call it from a worker thread.
+     */
+    public boolean isRevoked(String authToken) {
+        return revocations().isRevoked(authToken);
+    }
+
+    /**
+     * @return the accounts and token fingerprints as of the last change, empty if the snapshot is
+     * missing or unreadable, in which case AccountManager is the only source
+     */
+    public TokenSnapshot readSnapshot() {
+        try {
+            return mSnapshots.read();
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring unreadable token snapshot", e);
+            return TokenSnapshot.EMPTY;
+        }
+    }
+
+    /**
+     * Records {@code authToken} as the current token of {@code accountName}. The write
+     * happens on a worker thread.
+     */
+    public void saveSnapshot(final String accountName, final String authToken) {
+        mWorkers.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot(accountName, authToken);
+            }
+        });
+    }
+
+    private void writeSnapshot(String accountName, String authToken) {
+        try {
+            mSnapshots.put(TokenSnapshot.Entry.fromToken(accountName, authToken));
+        } catch (IOException e) {
+            // The snapshot is only a shortcut, AccountManager still has the token.
+            Log.w(TAG, "Unable to update token snapshot", e);
+        }
+    }
+
+    // Only trusts the snapshot for the exact token it was written for.
+    private boolean isExpired(Account account, String authToken) {
+        final TokenSnapshot.Entry entry = readSnapshot().get(account.name);
+        return entry != null && entry.matches(authToken)
+                && entry.isExpired(System.currentTimeMillis());
     }
 
     @Override
     public Bundle addAccount(AccountAuthenticatorResponse response, String accountType,
                              String authTokenType, String[] requiredFeatures, Bundle options) {
+        final long start = System.nanoTime();
         Log.d(TAG, "addAccount()");
         final Intent intent = new Intent(mContext, LoginActivity.class);
         intent.putExtra(AccountManager.KEY_ACCOUNT_AUTHENTICATOR_RESPONSE, response);
@@ -51,45 +250,124 @@ public class Authenticator extends AbstractAccountAuthenticator {
 
         final Bundle bundle = new Bundle();
         bundle.putParcelable(AccountManager.KEY_INTENT, intent);
+        AuthMetrics.getInstance().recordLatency(AuthMetrics.BINDER_ADD_ACCOUNT, start);
         return bundle;
     }
 
     @Override
-    public Bundle getAuthToken(AccountAuthenticatorResponse response, Account account,
+    public Bundle getAuthToken(final AccountAuthenticatorResponse response, final Account account,
                                String authTokenType, Bundle options) {
-        Log.d(TAG, "getAuthToken()");
-        // If the caller requested an authToken type we don't support, then
-        // return an error.
-        if (!authTokenType.equals(AUTH_TOKEN_TYPE)) {
-            final Bundle result = new Bundle();
-            result.putString(AccountManager.KEY_ERROR_MESSAGE, "invalid authTokenType");
-            return result;
+        final long start = System.nanoTime();
+        final AllocationProfiler.Scope allocations =
+                AllocationProfiler.getInstance().begin(AllocationProfiler.OP_GET_AUTH_TOKEN);
+        try {
+            Log.d(TAG, "getAuthToken()");
+            // If the caller requested an authToken type we don't support, then
+            // return an error.
+            if (!authTokenType.equals(AUTH_TOKEN_TYPE)) {
+                final Bundle result = new Bundle();
+                result.putString(AccountManager.KEY_ERROR_MESSAGE, "invalid authTokenType");
+                return result;
+            }
+
+            final AuthTraceRecorder recorder = AuthTraceRecorder.getInstance();
+            final long traceStart = recorder.now();
+
+            // Check if there is a token for this Account already.
+            final AccountManager am = AccountManager.get(mContext);
+            final String authToken = am.peekAuthToken(account, authTokenType);
+            Log.d(TAG, "peekAuthToken() " + authToken);
+
+            // Revoked tokens are dropped and a fresh one minted below.
+            if (!TextUtils.isEmpty(authToken) && revocations().isRevoked(authToken)) {
+                Log.d(TAG, "getAuthToken() cached token was revoked");
+                am.invalidateAuthToken(account.type, authToken);
+            } else if (!TextUtils.isEmpty(authToken) && isExpired(account, authToken)) {
+                Log.d(TAG, "getAuthToken() cached token expired");
+                am.invalidateAuthToken(account.type, authToken);
+            } else if (!TextUtils.isEmpty(authToken)) {
+                recorder.record(AuthTrace.TYPE_GET_AUTH_TOKEN, AuthTrace.OUTCOME_CACHED,
+                        account.name, traceStart);
+                return tokenResult(account, authToken);
+            }
+
+            // Slow path, answer through the response once the worker is done.
+            AsyncAnswer.submit(mWorkers, new Callable<Bundle>() {
+                @Override
+                public Bundle call() {
+                    final AllocationProfiler.Scope allocations = AllocationProfiler
+                            .getInstance().begin(AllocationProfiler.OP_GET_AUTH_TOKEN_SLOW);
+                    try {
+                        return getAuthTokenSlow(response, account, traceStart);
+                    } finally {
+                        allocations.end();
+                    }
+                }
+            }, new AsyncAnswer.Answer<Bundle>() {
+                @Override
+                public void onResult(Bundle result) {
+                    if (result.containsKey(AccountManager.KEY_ERROR_CODE)) {
+                        response.onError(result.getInt(AccountManager.KEY_ERROR_CODE),
+                                result.getString(AccountManager.KEY_ERROR_MESSAGE));
+                    } else {
+                        response.onResult(result);
+                    }
+                    AuthMetrics.getInstance()
+                            .recordLatency(AuthMetrics.GET_AUTH_TOKEN_ASYNC, start);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    Log.e(TAG, "getAuthToken() failed", t);
+                    response.onError(AccountManager.ERROR_CODE_REMOTE_EXCEPTION, t.getMessage());
+                    AuthMetrics.getInstance()
+                            .recordLatency(AuthMetrics.GET_AUTH_TOKEN_ASYNC, start);
+                }
+            });
+            return null;
+        } finally {
+            allocations.end();
+            AuthMetrics.getInstance().recordLatency(AuthMetrics.BINDER_GET_AUTH_TOKEN, start);
         }
+    }
 
+    private Bundle getAuthTokenSlow(AccountAuthenticatorResponse response, Account account,
+                                    long traceStart) {
+        final AuthTraceRecorder recorder = AuthTraceRecorder.getInstance();
         final AccountManager am = AccountManager.get(mContext);
 
-        // Check if there is a token for this Account already.
-        String authToken = am.peekAuthToken(account, authTokenType);
-        Log.d(TAG, "peekAuthToken() " + authToken);
-
         // If the token is does not exist we need to ask for a new one.
-        if (TextUtils.isEmpty(authToken)) {
-            final String password = am.getPassword(account);
-            // TODO: In a real environment the password should be used to authenticate
-            // with a real auth server and get a valid token, however in this app we generate
-            // the tokens by ourselves (AuthUtils) for simplicity's sake.
-            if (password != null) {
-                authToken = AuthUtils.generateFirebaseAuthToken(account.name);
+        final String password = am.getPassword(account);
+        // TODO: In a real environment the password should be used to authenticate
+        // with a real auth server and get a valid token, however in this app we generate
+        // the tokens by ourselves (AuthUtils) for simplicity's sake.
+        if (password != null) {
+            // Minting is the expensive part, cached tokens are never throttled.
+            if (!RateLimiter.getInstance().tryAcquire(account.name)) {
+                Log.w(TAG, "getAuthToken() rate limited for " + account.name);
+                AuthMetrics.getInstance().increment(AuthMetrics.GET_AUTH_TOKEN_RATE_LIMITED);
+                final Bundle result = new Bundle();
+                result.putInt(AccountManager.KEY_ERROR_CODE, Constants.ERROR_CODE_RATE_LIMITED);
+                result.putString(AccountManager.KEY_ERROR_MESSAGE, "rate limited");
+                recorder.record(AuthTrace.TYPE_GET_AUTH_TOKEN,
+                        AuthTrace.OUTCOME_RATE_LIMITED, account.name, traceStart);
+                return result;
+            }
+
+            String authToken;
+            try {
+                authToken = mMinter.getOrMint(account.name);
+            } catch (Exception e) {
+                Log.e(TAG, "Unable to mint token for " + account.name, e);
+                authToken = null;
             }
-        }
 
-        // If we get an authToken - we return it
-        if (!TextUtils.isEmpty(authToken)) {
-            final Bundle result = new Bundle();
-            result.putString(AccountManager.KEY_ACCOUNT_NAME, account.name);
-            result.putString(AccountManager.KEY_ACCOUNT_TYPE, account.type);
-            result.putString(AccountManager.KEY_AUTHTOKEN, authToken);
-            return result;
+            // If we get an authToken - we return it
+            if (!TextUtils.isEmpty(authToken)) {
+                recorder.record(AuthTrace.TYPE_GET_AUTH_TOKEN, AuthTrace.OUTCOME_SUCCESS,
+                        account.name, traceStart);
+                return tokenResult(account, authToken);
+            }
         }
 
         // If we get here, then we couldn't access the user's password - so we
@@ -101,39 +379,79 @@ public class Authenticator extends AbstractAccountAuthenticator {
         intent.putExtra(AccountManager.KEY_ACCOUNT_TYPE, Constants.ACCOUNT_TYPE);
         final Bundle bundle = new Bundle();
         bundle.putParcelable(AccountManager.KEY_INTENT, intent);
+        recorder.record(AuthTrace.TYPE_GET_AUTH_TOKEN, AuthTrace.OUTCOME_PROMPT,
+                account.name, traceStart);
         return bundle;
     }
 
+    /**
+     * Caches minted tokens in the AccountManager, skipping revoked ones.
+     */
+    private class AccountManagerStore implements AuthTokenMinter.Store {
+
+        @Override
+        public String peek(String accountName) {
+            final Account account = new Account(accountName, Constants.ACCOUNT_TYPE);
+            final String authToken = AccountManager.get(mContext)
+                    .peekAuthToken(account, AUTH_TOKEN_TYPE);
+            return revocations().isRevoked(authToken) ? null : authToken;
+        }
+
+        @Override
+        public void put(String accountName, String authToken) {
+            AccountManager.get(mContext).setAuthToken(
+                    new Account(accountName, Constants.ACCOUNT_TYPE), AUTH_TOKEN_TYPE, authToken);
+            // Already on a worker thread.
+            writeSnapshot(accountName, authToken);
+        }
+    }
+
+    private static Bundle tokenResult(Account account, String authToken) {
+        final Bundle result = new Bundle();
+        result.putString(AccountManager.KEY_ACCOUNT_NAME, account.name);
+        result.putString(AccountManager.KEY_ACCOUNT_TYPE, account.type);
+        result.putString(AccountManager.KEY_AUTHTOKEN, authToken);
+        return result;
+    }
+
 
     @Override
     public String getAuthTokenLabel(String authTokenType) {
+        final long start = System.nanoTime();
         // null means we don't support multiple authToken types
         Log.v(TAG, "getAuthTokenLabel()");
+        AuthMetrics.getInstance().recordLatency(AuthMetrics.BINDER_GET_AUTH_TOKEN_LABEL, start);
         return null;
     }
 
     @Override
     public Bundle hasFeatures(AccountAuthenticatorResponse response,
                               Account account, String[] features) {
+        final long start = System.nanoTime();
         // This call is used to query whether the Authenticator supports
         // specific features. We don't expect to get called, so we always
         // return false (no) for any queries.
         Log.v(TAG, "hasFeatures()");
         final Bundle result = new Bundle();
         result.putBoolean(AccountManager.KEY_BOOLEAN_RESULT, false);
+        AuthMetrics.getInstance().recordLatency(AuthMetrics.BINDER_HAS_FEATURES, start);
         return result;
     }
 
     @Override
     public Bundle editProperties(AccountAuthenticatorResponse response, String accountType) {
+        final long start = System.nanoTime();
         Log.v(TAG, "editProperties()");
+        AuthMetrics.getInstance().recordLatency(AuthMetrics.BINDER_EDIT_PROPERTIES, start);
         throw new UnsupportedOperationException();
     }
 
     @Override
     public Bundle confirmCredentials(AccountAuthenticatorResponse response, Account account,
                                      Bundle options) {
+        final long start = System.nanoTime();
         Log.v(TAG, "confirmCredentials()");
+        AuthMetrics.getInstance().recordLatency(AuthMetrics.BINDER_CONFIRM_CREDENTIALS, start);
         return null;
     }
 
@@ -141,7 +459,9 @@ public class Authenticator extends AbstractAccountAuthenticator {
     public Bundle updateCredentials(AccountAuthenticatorResponse response,
                                     Account account, String authTokenType,
                                     Bundle options) {
+        final long start = System.nanoTime();
         Log.v(TAG, "updateCredentials()");
+        AuthMetrics.getInstance().recordLatency(AuthMetrics.BINDER_UPDATE_CREDENTIALS, start);
         return null;
     }
 }
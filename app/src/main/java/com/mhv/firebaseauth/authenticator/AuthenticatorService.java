@@ -16,14 +16,34 @@
 package com.mhv.firebaseauth.authenticator;
 
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.os.IBinder;
 
+import com.mhv.firebaseauth.profiling.DebugProfile;
+import com.mhv.firebaseauth.trace.DebugTrace;
+
 public class AuthenticatorService extends Service {
 
+    // Shared by every bind so caches and worker threads outlive a single binding.
+    private static Authenticator sAuthenticator;
+
+    public static synchronized Authenticator getAuthenticator(Context context) {
+        if (sAuthenticator == null) {
+            sAuthenticator = new Authenticator(context.getApplicationContext());
+        }
+        return sAuthenticator;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        DebugTrace.ensureStarted(this);
+        DebugProfile.ensureStarted(this);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
-        Authenticator authenticator = new Authenticator(this);
-        return authenticator.getIBinder();
+        return getAuthenticator(this).getIBinder();
     }
 }
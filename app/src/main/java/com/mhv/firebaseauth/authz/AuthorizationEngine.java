@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.authz;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mhv.firebaseauth.util.Base64Url;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers permission checks from the {@code roles} and {@code permissions} claims of a
+ * token (see {@link com.mhv.firebaseauth.util.AuthUtils}).
+ *
+ * A token's claims are parsed once and compiled into a {@link CompiledClaims} bitset
+ * that is cached per token, so after the first check {@link #isAllowed(String, int)} is
+ * a map lookup and a bit test with no allocation. Permissions are referred to by the
+ * int id returned from {@link #permission(String)}, which callers should look up once
+ * and keep. Names the policy doesn't know about are ignored when compiling.
+ *
+ * Cached claims remember the token's exp, once it has passed (or if the token has
+ * none) every check is denied.
+ */
+public class AuthorizationEngine {
+
+    static final int MAX_CACHED_TOKENS = 256;
+
+    private static final AuthorizationEngine sInstance = new AuthorizationEngine();
+
+    private final ObjectMapper mMapper = new ObjectMapper();
+    private final ConcurrentMap<String, CompiledClaims> mCache = new ConcurrentHashMap<>();
+    // Guarded by this, cached tokens oldest first.
+    private final Queue<String> mCacheOrder = new ArrayDeque<>();
+
+    // Guarded by this. Policy changes are rare, so they simply drop the cache.
+    private final Map<String, Integer> mPermissions = new HashMap<>();
+    private final Map<String, long[]> mRoles = new HashMap<>();
+    private int mPolicyVersion;
+
+    public static AuthorizationEngine getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the id of the named permission, registering it if needed.
+     */
+    public synchronized int permission(String name) {
+        Integer id = mPermissions.get(name);
+        if (id == null) {
+            id = mPermissions.size();
+            mPermissions.put(name, id);
+            policyChanged();
+        }
+        return id;
+    }
+
+    /**
+     * Grants {@code permissions} to every token carrying {@code role}.
+     */
+    public synchronized void grant(String role, String... permissions) {
+        long[] bits = mRoles.get(role);
+        for (String permission : permissions) {
+            bits = set(bits, permission(permission));
+        }
+        mRoles.put(role, bits);
+        policyChanged();
+    }
+
+    private void policyChanged() {
+        mPolicyVersion++;
+        mCache.clear();
+        mCacheOrder.clear();
+    }
+
+    /**
+     * Checks whether {@code token} carries {@code permission}. Missing or expired tokens
+     * and tokens whose claims can't be read are denied everything.
+     */
+    public boolean isAllowed(String token, int permission) {
+        if (token == null) {
+            return false;
+        }
+        CompiledClaims claims = mCache.get(token);
+        if (claims == null) {
+            claims = compile(token);
+        }
+        return claims.has(permission) && !claims.isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the compiled claims of {@code token}, compiling and caching them if needed.
+     * A null token has no claims.
+     */
+    public CompiledClaims compile(String token) {
+        if (token == null) {
+            return CompiledClaims.NONE;
+        }
+        CompiledClaims claims = mCache.get(token);
+        if (claims != null) {
+            return claims;
+        }
+
+        final int version;
+        synchronized (this) {
+            version = mPolicyVersion;
+        }
+
+        try {
+            claims = parse(token);
+        } catch (IOException | IllegalArgumentException e) {
+            claims = CompiledClaims.NONE;
+        }
+
+        synchronized (this) {
+            // Don't cache claims compiled against a policy that changed meanwhile.
+            if (version == mPolicyVersion && mCache.put(token, claims) == null) {
+                // Each user only holds a couple of live tokens, if the cache fills up
+                // the oldest entries are for expired ones.
+                mCacheOrder.add(token);
+                while (mCacheOrder.size() > MAX_CACHED_TOKENS) {
+                    mCache.remove(mCacheOrder.remove());
+                }
+            }
+        }
+        return claims;
+    }
+
+    public int cacheSize() {
+        return mCache.size();
+    }
+
+    private CompiledClaims parse(String token) throws IOException {
+        final JsonNode payload = mMapper.readTree(Base64Url.decodeJwtPayload(token));
+
+        // Custom tokens nest them under "claims", ID tokens have them at the top level.
+        JsonNode claims = payload.path("claims");
+        if (!claims.isObject()) {
+            claims = payload;
+        }
+
+        long[] bits = null;
+        synchronized (this) {
+            for (JsonNode role : claims.path("roles")) {
+                final long[] granted = mRoles.get(role.asText());
+                if (granted != null) {
+                    bits = or(bits, granted);
+                }
+            }
+            for (JsonNode permission : claims.path("permissions")) {
+                final Integer id = mPermissions.get(permission.asText());
+                if (id != null) {
+                    bits = set(bits, id);
+                }
+            }
+        }
+
+        // Our tokens carry exp as a string, Firebase's as a number. asLong() reads both.
+        final long expiresAtMillis = TimeUnit.SECONDS.toMillis(payload.path("exp").asLong(0));
+        return new CompiledClaims(uid(payload), expiresAtMillis, bits != null ? bits : new long[0]);
+    }
+
+    /**
+     * Custom tokens carry the user in "uid" ("sub" is the service account), ID tokens
+     * in "user_id" and "sub".
+     */
+    private static String uid(JsonNode payload) {
+        String uid = payload.path("uid").asText(null);
+        if (uid == null) {
+            uid = payload.path("user_id").asText(null);
+        }
+        if (uid == null) {
+            uid = payload.path("sub").asText(null);
+        }
+        return uid;
+    }
+
+    private static long[] set(long[] bits, int id) {
+        final int word = id >>> 6;
+        if (bits == null || bits.length <= word) {
+            final long[] grown = new long[word + 1];
+            if (bits != null) {
+                System.arraycopy(bits, 0, grown, 0, bits.length);
+            }
+            bits = grown;
+        }
+        bits[word] |= 1L << id;
+        return bits;
+    }
+
+    private static long[] or(long[] bits, long[] other) {
+        final long[] result = new long[Math.max(bits == null ? 0 : bits.length, other.length)];
+        if (bits != null) {
+            System.arraycopy(bits, 0, result, 0, bits.length);
+        }
+        for (int i = 0; i < other.length; i++) {
+            result[i] |= other[i];
+        }
+        return result;
+    }
+}
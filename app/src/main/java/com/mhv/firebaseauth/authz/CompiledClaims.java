@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.authz;
+
+/**
+ * The permissions granted by one token, directly or through its roles, as a bitset
+ * indexed by the ids handed out by {@link AuthorizationEngine#permission(String)}.
+ */
+public final class CompiledClaims {
+
+    static final CompiledClaims NONE = new CompiledClaims(null, 0, new long[0]);
+
+    private final String mUid;
+    private final long mExpiresAtMillis;
+    private final long[] mBits;
+
+    CompiledClaims(String uid, long expiresAtMillis, long[] bits) {
+        mUid = uid;
+        mExpiresAtMillis = expiresAtMillis;
+        mBits = bits;
+    }
+
+    public String getUid() {
+        return mUid;
+    }
+
+    /**
+     * When the token expires, 0 if it has no exp claim.
+     */
+    public long getExpiresAtMillis() {
+        return mExpiresAtMillis;
+    }
+
+    public boolean isExpired(long nowMillis) {
+        return nowMillis >= mExpiresAtMillis;
+    }
+
+    public boolean has(int permission) {
+        final int word = permission >>> 6;
+        return word < mBits.length && (mBits[word] & (1L << permission)) != 0;
+    }
+}
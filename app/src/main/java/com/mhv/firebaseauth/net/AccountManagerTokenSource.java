@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.net;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+
+import com.mhv.firebaseauth.Constants;
+
+/**
+ * {@link AuthInterceptor.TokenSource} that asks the AccountManager, and so our
+ * Authenticator, for the token of the app's account.
+ */
+public class AccountManagerTokenSource implements AuthInterceptor.TokenSource {
+
+    private final AccountManager mAccountManager;
+
+    public AccountManagerTokenSource(Context context) {
+        mAccountManager = AccountManager.get(context.getApplicationContext());
+    }
+
+    @Override
+    public String getToken() throws Exception {
+        // We only support a single account, same as MainActivity.
+        final Account[] accounts = mAccountManager.getAccountsByType(Constants.ACCOUNT_TYPE);
+        if (accounts.length == 0) {
+            return null;
+        }
+        return mAccountManager.blockingGetAuthToken(accounts[0], Constants.AUTH_TOKEN_TYPE, true);
+    }
+
+    @Override
+    public void invalidateToken(String token) {
+        mAccountManager.invalidateAuthToken(Constants.ACCOUNT_TYPE, token);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.net;
+
+import com.mhv.firebaseauth.util.AuthMetrics;
+import com.mhv.firebaseauth.util.SingleFlight;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.Callable;
+
+/**
+ * Attaches the current auth token to every request as a bearer token.
+ *
+ * The token is fetched once and kept in memory between requests. When the server
+ * answers 401 the token is refreshed and the request retried once. All requests that
+ * fail with the same stale token share one refresh: the first one does it, the others
+ * wait for it, and any that only notice afterwards just pick up the new token. Requests
+ * starting while a refresh runs wait for it too rather than sending the old token.
+ *
+ * {@link #execute(HttpRequest)} blocks and must not be called from the main thread.
+ */
+public class AuthInterceptor implements HttpTransport {
+
+    public static final String METRIC_TOKEN_REFRESH = "http.token_refresh";
+
+    // There is only ever one token, so every fetch of it shares one key: the first
+    // fetch and refreshes never run side by side.
+    private static final String FETCH = "token";
+
+    /**
+     * Where tokens come from, the Authenticator in the app (see
+     * {@link AccountManagerTokenSource}).
+     */
+    public interface TokenSource {
+
+        /**
+         * Returns a token, blocking until one is available.
+         */
+        String getToken() throws Exception;
+
+        /**
+         * Tells the source the server rejected {@code token}, so it mustn't hand it
+         * out again.
+         */
+        void invalidateToken(String token);
+    }
+
+    private final HttpTransport mNext;
+    private final TokenSource mSource;
+    private final SingleFlight<String, String> mFetches = new SingleFlight<>();
+
+    private volatile String mToken;
+
+    public AuthInterceptor(HttpTransport next, TokenSource source) {
+        mNext = next;
+        mSource = source;
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        final String token = currentToken();
+        final HttpResponse response = mNext.execute(authorize(request, token));
+        if (response.getCode() != HttpURLConnection.HTTP_UNAUTHORIZED) {
+            return response;
+        }
+
+        final String fresh = refresh(token);
+        if (fresh == null || fresh.equals(token)) {
+            return response;
+        }
+        return mNext.execute(authorize(request, fresh));
+    }
+
+    /**
+     * Returns the token attached to requests right now, or null if none was fetched yet.
+     */
+    public String peekToken() {
+        return mToken;
+    }
+
+    private String currentToken() throws IOException {
+        final String token = mToken;
+        if (token != null && !mFetches.isInFlight(FETCH)) {
+            return token;
+        }
+        // Either nothing was fetched yet or a refresh is running. Join it instead of
+        // sending a token that is about to be replaced.
+        return share(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                final String current = mToken;
+                if (current != null) {
+                    return current;
+                }
+                final String fetched = mSource.getToken();
+                mToken = fetched;
+                return fetched;
+            }
+        });
+    }
+
+    private String refresh(final String stale) throws IOException {
+        final String current = mToken;
+        if (current != null && !current.equals(stale)) {
+            // Someone already replaced the token we used.
+            return current;
+        }
+
+        return share(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                final String current = mToken;
+                if (current != null && !current.equals(stale)) {
+                    return current;
+                }
+
+                // The stale token stays in mToken until the new one is here, requests
+                // arriving meanwhile see the fetch in flight and wait for it.
+                AuthMetrics.getInstance().increment(METRIC_TOKEN_REFRESH);
+                if (stale != null) {
+                    mSource.invalidateToken(stale);
+                }
+                final String fetched = mSource.getToken();
+                mToken = fetched;
+                return fetched;
+            }
+        });
+    }
+
+    private String share(Callable<String> loader) throws IOException {
+        try {
+            return mFetches.execute(FETCH, loader);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unable to get auth token", e);
+        }
+    }
+
+    private static HttpRequest authorize(HttpRequest request, String token) {
+        return token == null ? request : request.withHeader("Authorization", "Bearer " + token);
+    }
+}
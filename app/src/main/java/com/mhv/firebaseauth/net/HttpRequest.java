@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.net;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable HTTP request passed along a chain of {@link HttpTransport}s.
+ */
+public final class HttpRequest {
+
+    private final URL mUrl;
+    private final String mMethod;
+    private final Map<String, String> mHeaders;
+    private final byte[] mBody;
+
+    public HttpRequest(URL url, String method, Map<String, String> headers, byte[] body) {
+        mUrl = url;
+        mMethod = method;
+        mHeaders = Collections.unmodifiableMap(new LinkedHashMap<>(headers));
+        mBody = body;
+    }
+
+    public static HttpRequest get(URL url) {
+        return new HttpRequest(url, "GET", Collections.<String, String>emptyMap(), null);
+    }
+
+    public URL getUrl() {
+        return mUrl;
+    }
+
+    public String getMethod() {
+        return mMethod;
+    }
+
+    public Map<String, String> getHeaders() {
+        return mHeaders;
+    }
+
+    public byte[] getBody() {
+        return mBody;
+    }
+
+    /**
+     * Returns a copy of this request with {@code name} set to {@code value}.
+     */
+    public HttpRequest withHeader(String name, String value) {
+        final Map<String, String> headers = new LinkedHashMap<>(mHeaders);
+        headers.put(name, value);
+        return new HttpRequest(mUrl, mMethod, headers, mBody);
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.net;
+
+/**
+ * A fully read HTTP response.
+ */
+public final class HttpResponse {
+
+    private final int mCode;
+    private final byte[] mBody;
+
+    public HttpResponse(int code, byte[] body) {
+        mCode = code;
+        mBody = body;
+    }
+
+    public int getCode() {
+        return mCode;
+    }
+
+    public byte[] getBody() {
+        return mBody;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+
+/**
+ * {@link HttpTransport} on top of {@link HttpURLConnection}.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    public UrlConnectionTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        final HttpURLConnection connection =
+                (HttpURLConnection) request.getUrl().openConnection();
+        try {
+            connection.setConnectTimeout(mConnectTimeoutMillis);
+            connection.setReadTimeout(mReadTimeoutMillis);
+            connection.setRequestMethod(request.getMethod());
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            if (request.getBody() != null) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(request.getBody().length);
+                final OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(request.getBody());
+                } finally {
+                    out.close();
+                }
+            }
+
+            final int code = connection.getResponseCode();
+            final InputStream in = code >= 400
+                    ? connection.getErrorStream() : connection.getInputStream();
+            return new HttpResponse(code, readFully(in));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
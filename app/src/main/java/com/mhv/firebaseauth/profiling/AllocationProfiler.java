@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.profiling;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records how much each auth operation allocates, using per thread allocation counters.
+ *
+ * Operations are bracketed with {@link #begin} and {@link Scope#end} on the same thread,
+ * only allocations made by that thread are counted. Work handed to other threads (the
+ * pre-mint during registration, the Authenticator's slow path) is measured by the scope
+ * those threads open themselves. While profiling is off {@link #begin} returns a shared
+ * no-op scope, so the instrumentation costs nothing in normal use.
+ *
+ * Besides per operation totals it keeps the live size of the caches registered with
+ * {@link #registerCache}, flags operations that allocate more than their budget and
+ * exports everything as JSON, one file per build, so releases can be compared.
+ */
+public class AllocationProfiler {
+
+    public static final String OP_LOGIN = "auth.login";
+    public static final String OP_REGISTER = "auth.register";
+    public static final String OP_COMPLETE_LOGIN = "auth.complete_login";
+    public static final String OP_GET_AUTH_TOKEN = "authenticator.get_auth_token";
+    public static final String OP_GET_AUTH_TOKEN_SLOW = "authenticator.get_auth_token.slow";
+    public static final String OP_MINT = "auth_utils.mint";
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_OVER_BUDGET_EVENTS = 32;
+    private static final int CALIBRATION_ROUNDS = 16;
+
+    /**
+     * Allocations made so far by the calling thread.
+     */
+    public interface Counter {
+        /**
+         * Name written to the export, so numbers from different counters aren't
+         * compared.
+         */
+        String name();
+
+        /**
+         * Turns counting on.
+         *
+         * @return false if this runtime can't count allocations
+         */
+        boolean start();
+
+        long threadBytes();
+
+        /**
+         * @return objects allocated, or -1 if the counter only knows about bytes
+         */
+        long threadObjects();
+    }
+
+    /**
+     * A cache whose live size is reported.
+     */
+    public interface Cache {
+        /**
+         * Called once per export, so the cache only has to be looked at once.
+         */
+        CacheSize measure();
+    }
+
+    public static final class CacheSize {
+
+        public final long entries;
+        public final long bytes;
+
+        /**
+         * @param bytes an estimate of the memory held, or -1 if unknown
+         */
+        public CacheSize(long entries, long bytes) {
+            this.entries = entries;
+            this.bytes = bytes;
+        }
+    }
+
+    public interface OverBudgetListener {
+        void onOverBudget(String operation, long bytes, long budgetBytes);
+    }
+
+    public static class Scope {
+
+        private final AllocationProfiler mProfiler;
+        private final String mOperation;
+        private final long mStartBytes;
+        private final long mStartObjects;
+
+        private Scope(AllocationProfiler profiler, String operation, long startBytes,
+                      long startObjects) {
+            mProfiler = profiler;
+            mOperation = operation;
+            mStartBytes = startBytes;
+            mStartObjects = startObjects;
+        }
+
+        public void end() {
+            if (mProfiler != null) {
+                mProfiler.end(this);
+            }
+        }
+    }
+
+    public static class OperationStats {
+
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mBytes = new AtomicLong();
+        private final AtomicLong mMaxBytes = new AtomicLong();
+        private final AtomicLong mObjects = new AtomicLong();
+        private final AtomicLong mOverBudget = new AtomicLong();
+
+        void record(long bytes, long objects, boolean overBudget) {
+            mCount.incrementAndGet();
+            mBytes.addAndGet(bytes);
+            mObjects.addAndGet(objects);
+            if (overBudget) {
+                mOverBudget.incrementAndGet();
+            }
+            long max;
+            while ((max = mMaxBytes.get()) < bytes && !mMaxBytes.compareAndSet(max, bytes)) {
+                // Lost the race, try again with the new max.
+            }
+        }
+
+        public long count() {
+            return mCount.get();
+        }
+
+        public long totalBytes() {
+            return mBytes.get();
+        }
+
+        public long meanBytes() {
+            final long count = count();
+            return count == 0 ? 0 : totalBytes() / count;
+        }
+
+        public long maxBytes() {
+            return mMaxBytes.get();
+        }
+
+        /**
+         * @return objects allocated, or a negative number if the counter can't tell
+         */
+        public long totalObjects() {
+            return mObjects.get();
+        }
+
+        public long overBudget() {
+            return mOverBudget.get();
+        }
+    }
+
+    private static class OverBudgetEvent {
+
+        final String mOperation;
+        final long mBytes;
+        final long mAtMillis;
+        final String mThread;
+
+        OverBudgetEvent(String operation, long bytes, long atMillis, String thread) {
+            mOperation = operation;
+            mBytes = bytes;
+            mAtMillis = atMillis;
+            mThread = thread;
+        }
+    }
+
+    private static final Scope NO_OP = new Scope(null, null, 0, 0);
+
+    private static final AllocationProfiler sInstance = new AllocationProfiler();
+
+    private final ConcurrentMap<String, OperationStats> mOperations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> mBudgets = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Cache> mCaches = new ConcurrentHashMap<>();
+    private final Deque<OverBudgetEvent> mOverBudgetEvents = new ArrayDeque<>();
+
+    // Null while profiling is off.
+    private volatile Counter mCounter;
+    private volatile OverBudgetListener mListener;
+    // What reading the counters allocates by itself, subtracted from every scope.
+    private long mOverheadBytes;
+    private long mOverheadObjects;
+    // Keeps the JIT from optimizing the calibration allocation away.
+    private volatile Scope mCalibrationScope;
+
+    public static AllocationProfiler getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Starts profiling with {@code counter}.
+     *
+     * @return false, leaving profiling off, if the counter isn't supported here
+     */
+    public synchronized boolean start(Counter counter) {
+        if (!counter.start()) {
+            return false;
+        }
+        // Same steps as begin() and end() with nothing in between.
+        long overheadBytes = Long.MAX_VALUE;
+        long overheadObjects = Long.MAX_VALUE;
+        for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+            final long bytes = counter.threadBytes();
+            final long objects = counter.threadObjects();
+            mCalibrationScope = new Scope(this, null, bytes, objects);
+            overheadBytes = Math.min(overheadBytes, counter.threadBytes() - bytes);
+            overheadObjects = Math.min(overheadObjects, counter.threadObjects() - objects);
+        }
+        mCalibrationScope = null;
+        mOverheadBytes = Math.max(0, overheadBytes);
+        mOverheadObjects = Math.max(0, overheadObjects);
+        mCounter = counter;
+        return true;
+    }
+
+    public void stop() {
+        mCounter = null;
+    }
+
+    public boolean isEnabled() {
+        return mCounter != null;
+    }
+
+    public void setListener(OverBudgetListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Flags {@code operation} whenever a single run allocates more than
+     * {@code budgetBytes}.
+     */
+    public void setBudget(String operation, long budgetBytes) {
+        mBudgets.put(operation, budgetBytes);
+    }
+
+    /**
+     * Reports the size of {@code cache} under {@code name}, replacing any cache
+     * registered under the same name.
+     */
+    public void registerCache(String name, Cache cache) {
+        mCaches.put(name, cache);
+    }
+
+    public Scope begin(String operation) {
+        final Counter counter = mCounter;
+        if (counter == null) {
+            return NO_OP;
+        }
+        final long bytes = counter.threadBytes();
+        final long objects = counter.threadObjects();
+        return new Scope(this, operation, bytes, objects);
+    }
+
+    private void end(Scope scope) {
+        final Counter counter = mCounter;
+        if (counter == null) {
+            return;
+        }
+        final long bytes = Math.max(0, counter.threadBytes() - scope.mStartBytes
+                - mOverheadBytes);
+        final long objects = scope.mStartObjects < 0 ? -1 : Math.max(0,
+                counter.threadObjects() - scope.mStartObjects - mOverheadObjects);
+
+        final Long budget = mBudgets.get(scope.mOperation);
+        final boolean overBudget = budget != null && bytes > budget;
+        stats(scope.mOperation).record(bytes, objects, overBudget);
+
+        if (overBudget) {
+            synchronized (mOverBudgetEvents) {
+                if (mOverBudgetEvents.size() == MAX_OVER_BUDGET_EVENTS) {
+                    mOverBudgetEvents.removeFirst();
+                }
+                mOverBudgetEvents.addLast(new OverBudgetEvent(scope.mOperation, bytes,
+                        System.currentTimeMillis(), Thread.currentThread().getName()));
+            }
+            final OverBudgetListener listener = mListener;
+            if (listener != null) {
+                listener.onOverBudget(scope.mOperation, bytes, budget);
+            }
+        }
+    }
+
+    public OperationStats stats(String operation) {
+        OperationStats stats = mOperations.get(operation);
+        if (stats == null) {
+            final OperationStats created = new OperationStats();
+            stats = mOperations.putIfAbsent(operation, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    public Map<String, OperationStats> operations() {
+        return new TreeMap<>(mOperations);
+    }
+
+    public void reset() {
+        mOperations.clear();
+        synchronized (mOverBudgetEvents) {
+            mOverBudgetEvents.clear();
+        }
+    }
+
+    /**
+     * Writes operation stats, cache sizes and the most recent over budget operations as
+     * JSON.
+     *
+     * @param label identifies the build, e.g. its version name
+     */
+    public void export(OutputStream out, String label) throws IOException {
+        final Counter counter = mCounter;
+        final JsonGenerator json = new JsonFactory().createGenerator(out, JsonEncoding.UTF8);
+        json.useDefaultPrettyPrinter();
+        json.writeStartObject();
+        json.writeNumberField("version", FORMAT_VERSION);
+        json.writeStringField("label", label);
+        json.writeStringField("counter", counter == null ? "none" : counter.name());
+        json.writeNumberField("exportedAtMillis", System.currentTimeMillis());
+
+        json.writeObjectFieldStart("operations");
+        for (Map.Entry<String, OperationStats> entry : operations().entrySet()) {
+            final OperationStats stats = entry.getValue();
+            final Long budget = mBudgets.get(entry.getKey());
+            json.writeObjectFieldStart(entry.getKey());
+            json.writeNumberField("count", stats.count());
+            json.writeNumberField("totalBytes", stats.totalBytes());
+            json.writeNumberField("meanBytes", stats.meanBytes());
+            json.writeNumberField("maxBytes", stats.maxBytes());
+            if (stats.totalObjects() >= 0) {
+                json.writeNumberField("totalObjects", stats.totalObjects());
+            }
+            if (budget != null) {
+                json.writeNumberField("budgetBytes", budget);
+                json.writeNumberField("overBudget", stats.overBudget());
+            }
+            json.writeEndObject();
+        }
+        json.writeEndObject();
+
+        json.writeObjectFieldStart("caches");
+        for (Map.Entry<String, Cache> entry : new TreeMap<>(mCaches).entrySet()) {
+            final CacheSize size = entry.getValue().measure();
+            json.writeObjectFieldStart(entry.getKey());
+            json.writeNumberField("entries", size.entries);
+            if (size.bytes >= 0) {
+                json.writeNumberField("bytes", size.bytes);
+            }
+            json.writeEndObject();
+        }
+        json.writeEndObject();
+
+        final List<OverBudgetEvent> events;
+        synchronized (mOverBudgetEvents) {
+            events = new ArrayList<>(mOverBudgetEvents);
+        }
+        json.writeArrayFieldStart("overBudget");
+        for (OverBudgetEvent event : events) {
+            json.writeStartObject();
+            json.writeStringField("operation", event.mOperation);
+            json.writeNumberField("bytes", event.mBytes);
+            json.writeNumberField("atMillis", event.mAtMillis);
+            json.writeStringField("thread", event.mThread);
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+
+        json.writeEndObject();
+        json.flush();
+    }
+}
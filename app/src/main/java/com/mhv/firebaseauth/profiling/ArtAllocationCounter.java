@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.profiling;
+
+import android.os.Debug;
+
+/**
+ * Reads the runtime's per thread allocation counters through {@link Debug}. They're
+ * deprecated but still work on ART once counting is started, which slows allocation
+ * down a bit, so only profiling builds should use this.
+ */
+@SuppressWarnings("deprecation")
+public class ArtAllocationCounter implements AllocationProfiler.Counter {
+
+    @Override
+    public String name() {
+        return "art";
+    }
+
+    @Override
+    public boolean start() {
+        Debug.startAllocCounting();
+        // Make sure the counters actually move on this runtime.
+        final int before = Debug.getThreadAllocCount();
+        sProbe = new Object();
+        return Debug.getThreadAllocCount() > before;
+    }
+
+    @Override
+    public long threadBytes() {
+        return Debug.getThreadAllocSize();
+    }
+
+    @Override
+    public long threadObjects() {
+        return Debug.getThreadAllocCount();
+    }
+
+    // Allocated by start() to check the counters.
+    @SuppressWarnings("unused")
+    private static volatile Object sProbe;
+}
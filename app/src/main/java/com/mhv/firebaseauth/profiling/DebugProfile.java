@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.profiling;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.mhv.firebaseauth.BuildConfig;
+import com.mhv.firebaseauth.authz.AuthorizationEngine;
+import com.mhv.firebaseauth.token.IdTokenProvider;
+import com.mhv.firebaseauth.util.AuthMetrics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Turns on allocation profiling for debug builds when {@code files/alloc_profile.conf}
+ * exists, e.g. after {@code adb shell run-as com.mhv.firebaseauth touch
+ * files/alloc_profile.conf}. Entries in that file override the default budgets, one
+ * {@code operation=bytes} per line.
+ *
+ * Reports are written to {@code files/profiles/allocations-<version>.json}, named after
+ * the build so results from two releases can be diffed.
+ */
+public class DebugProfile {
+
+    private static final String TAG = "DebugProfile";
+
+    private static final String CONFIG_FILE = "alloc_profile.conf";
+
+    private static boolean sStarted;
+
+    // Reports are written off the calling thread, which is often the main thread.
+    private static final Executor sExporter = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "DebugProfileExport");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private DebugProfile() {
+    }
+
+    public static void ensureStarted(Context context) {
+        if (!BuildConfig.DEBUG) {
+            return;
+        }
+        synchronized (DebugProfile.class) {
+            if (sStarted) {
+                return;
+            }
+            sStarted = true;
+        }
+
+        final File config = new File(context.getFilesDir(), CONFIG_FILE);
+        if (!config.exists()) {
+            return;
+        }
+
+        final AllocationProfiler profiler = AllocationProfiler.getInstance();
+        setDefaultBudgets(profiler);
+        try {
+            loadBudgets(profiler, config);
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Ignoring unreadable " + config, e);
+        }
+
+        registerCaches(profiler);
+        profiler.setListener(new AllocationProfiler.OverBudgetListener() {
+            @Override
+            public void onOverBudget(String operation, long bytes, long budgetBytes) {
+                Log.w(TAG, operation + " allocated " + bytes + " bytes, budget "
+                        + budgetBytes);
+            }
+        });
+
+        if (profiler.start(new ArtAllocationCounter())) {
+            Log.d(TAG, "Profiling auth allocations");
+        } else {
+            Log.w(TAG, "Allocation counters not supported on this runtime");
+        }
+    }
+
+    /**
+     * Writes the current report in the background if profiling is on.
+     */
+    public static void export(Context context) {
+        final AllocationProfiler profiler = AllocationProfiler.getInstance();
+        if (!profiler.isEnabled()) {
+            return;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        sExporter.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeReport(appContext, profiler);
+            }
+        });
+    }
+
+    private static void writeReport(Context context, AllocationProfiler profiler) {
+        final File dir = new File(context.getFilesDir(), "profiles");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Unable to create " + dir);
+            return;
+        }
+
+        final String label = BuildConfig.VERSION_NAME + "-" + BuildConfig.VERSION_CODE;
+        final File file = new File(dir, "allocations-" + label + ".json");
+        try {
+            final FileOutputStream out = new FileOutputStream(file);
+            try {
+                profiler.export(out, label);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to export allocation profile", e);
+        }
+    }
+
+    // Rough ceilings for what each operation should need, most of it token strings.
+    private static void setDefaultBudgets(AllocationProfiler profiler) {
+        profiler.setBudget(AllocationProfiler.OP_LOGIN, 64 * 1024);
+        profiler.setBudget(AllocationProfiler.OP_REGISTER, 64 * 1024);
+        profiler.setBudget(AllocationProfiler.OP_COMPLETE_LOGIN, 16 * 1024);
+        profiler.setBudget(AllocationProfiler.OP_GET_AUTH_TOKEN, 8 * 1024);
+        profiler.setBudget(AllocationProfiler.OP_GET_AUTH_TOKEN_SLOW, 64 * 1024);
+        profiler.setBudget(AllocationProfiler.OP_MINT, 48 * 1024);
+    }
+
+    private static void loadBudgets(AllocationProfiler profiler, File config)
+            throws IOException {
+        final Properties budgets = new Properties();
+        final FileInputStream in = new FileInputStream(config);
+        try {
+            budgets.load(in);
+        } finally {
+            in.close();
+        }
+        for (String operation : budgets.stringPropertyNames()) {
+            profiler.setBudget(operation, Long.parseLong(budgets.getProperty(operation).trim()));
+        }
+    }
+
+    // Process wide caches. The Authenticator and AuthService register their own.
+    private static void registerCaches(AllocationProfiler profiler) {
+        profiler.registerCache("authz.compiled_claims", new AllocationProfiler.Cache() {
+            @Override
+            public AllocationProfiler.CacheSize measure() {
+                return new AllocationProfiler.CacheSize(
+                        AuthorizationEngine.getInstance().cacheSize(), -1);
+            }
+        });
+        profiler.registerCache("token.id_token", new AllocationProfiler.Cache() {
+            @Override
+            public AllocationProfiler.CacheSize measure() {
+                final String token = IdTokenProvider.getInstance().peekToken();
+                return token == null ? new AllocationProfiler.CacheSize(0, 0)
+                        : new AllocationProfiler.CacheSize(1, token.length() * 2);
+            }
+        });
+        profiler.registerCache("metrics", new AllocationProfiler.Cache() {
+            @Override
+            public AllocationProfiler.CacheSize measure() {
+                final AuthMetrics metrics = AuthMetrics.getInstance();
+                return new AllocationProfiler.CacheSize(
+                        metrics.snapshot().size() + metrics.latencies().size(), -1);
+            }
+        });
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.registration;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Emails we know already have an account: the ones on this device and the ones the
+ * backend told us are taken. Lets registration turn down a duplicate without a round
+ * trip. Emails the backend has but we never saw aren't here, the backend still has
+ * the final word.
+ */
+public class KnownEmails {
+
+    private final Set<String> mEmails =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public boolean contains(String email) {
+        return email != null && mEmails.contains(normalize(email));
+    }
+
+    public void add(String email) {
+        mEmails.add(normalize(email));
+    }
+
+    public int size() {
+        return mEmails.size();
+    }
+
+    private static String normalize(String email) {
+        return email.trim().toLowerCase(Locale.US);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.registration;
+
+import com.mhv.firebaseauth.Constants;
+import com.mhv.firebaseauth.authenticator.AuthTokenMinter;
+import com.mhv.firebaseauth.util.AuthMetrics;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Registers a user, overlapping the local work with the backend call.
+ *
+ * The auth token only depends on the user name, so it's minted on a worker thread as
+ * soon as the input has been validated. Meanwhile the calling thread checks the email
+ * against {@link KnownEmails} and, if it isn't known, creates the user on the
+ * backend. Once the user exists the pre-minted token is committed, if anything
+ * failed along the way it's discarded. Either way registration takes about as long as
+ * the slower of the mint and the backend call instead of both.
+ */
+public class RegistrationPipeline {
+
+    public interface Backend {
+        /**
+         * Creates the user, blocking until the backend answers.
+         */
+        void createUser(String email, String password) throws Exception;
+
+        /**
+         * @return whether {@code e}, thrown by {@link #createUser}, means the email
+         * already has an account
+         */
+        boolean isEmailTaken(Exception e);
+    }
+
+    public static class Result {
+
+        private final String mAuthToken;
+        private final int mErrorCode;
+        private final String mErrorMessage;
+
+        private Result(String authToken, int errorCode, String errorMessage) {
+            mAuthToken = authToken;
+            mErrorCode = errorCode;
+            mErrorMessage = errorMessage;
+        }
+
+        static Result success(String authToken) {
+            return new Result(authToken, 0, null);
+        }
+
+        static Result failure(int errorCode, String errorMessage) {
+            return new Result(null, errorCode, errorMessage);
+        }
+
+        public boolean isSuccessful() {
+            return mAuthToken != null;
+        }
+
+        public String getAuthToken() {
+            return mAuthToken;
+        }
+
+        /**
+         * @return one of the Constants.ERROR_CODE_* values, 0 on success
+         */
+        public int getErrorCode() {
+            return mErrorCode;
+        }
+
+        public String getErrorMessage() {
+            return mErrorMessage;
+        }
+    }
+
+    private final Backend mBackend;
+    private final AuthTokenMinter.Mint mMint;
+    private final KnownEmails mKnownEmails;
+    private final ExecutorService mExecutor;
+
+    public RegistrationPipeline(Backend backend, AuthTokenMinter.Mint mint,
+                                KnownEmails knownEmails, ExecutorService executor) {
+        mBackend = backend;
+        mMint = mint;
+        mKnownEmails = knownEmails;
+        mExecutor = executor;
+    }
+
+    public KnownEmails getKnownEmails() {
+        return mKnownEmails;
+    }
+
+    public Result register(final String userName, String email, String password) {
+        final long start = System.nanoTime();
+        // Validating takes microseconds, don't spend a mint on input that can't work.
+        final String invalid = RegistrationValidator.validate(userName, email, password);
+        if (invalid != null) {
+            AuthMetrics.getInstance().recordLatency(AuthMetrics.REGISTER_PIPELINE, start);
+            return Result.failure(Constants.ERROR_CODE_INVALID_INPUT, invalid);
+        }
+
+        // Minting doesn't depend on anything below, start it first so it overlaps
+        // with all of it.
+        final Future<String> preMinted = mExecutor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return mMint.mint(userName);
+            }
+        });
+
+        try {
+            // Takes microseconds, it runs here rather than on a thread of its own while
+            // the mint is underway.
+            if (mKnownEmails.contains(email)) {
+                return discard(preMinted, emailTaken(email));
+            }
+
+            try {
+                mBackend.createUser(email, password);
+            } catch (Exception e) {
+                if (mBackend.isEmailTaken(e)) {
+                    mKnownEmails.add(email);
+                    return discard(preMinted, emailTaken(email));
+                }
+                return discard(preMinted, Result.failure(
+                        Constants.ERROR_CODE_REGISTRATION_FAILED, e.getMessage()));
+            }
+            mKnownEmails.add(email);
+
+            return commit(preMinted, userName);
+        } finally {
+            AuthMetrics.getInstance().recordLatency(AuthMetrics.REGISTER_PIPELINE, start);
+        }
+    }
+
+    private Result commit(Future<String> preMinted, String userName) {
+        try {
+            final String authToken = preMinted.get();
+            if (authToken != null) {
+                AuthMetrics.getInstance().increment(AuthMetrics.REGISTER_PREMINT_COMMITTED);
+                return Result.success(authToken);
+            }
+        } catch (ExecutionException e) {
+            // Retried below.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // The user exists by now, so rather than failing the registration try once more.
+        AuthMetrics.getInstance().increment(AuthMetrics.REGISTER_PREMINT_RETRIED);
+        try {
+            final String authToken = mMint.mint(userName);
+            if (authToken != null) {
+                return Result.success(authToken);
+            }
+        } catch (Exception e) {
+            return Result.failure(Constants.ERROR_CODE_REGISTRATION_FAILED, e.getMessage());
+        }
+        return Result.failure(Constants.ERROR_CODE_REGISTRATION_FAILED,
+                "Unable to create an auth token");
+    }
+
+    private static Result discard(Future<String> preMinted, Result result) {
+        // The token never leaves this class, dropping the future is enough.
+        preMinted.cancel(true);
+        AuthMetrics.getInstance().increment(AuthMetrics.REGISTER_PREMINT_DISCARDED);
+        return result;
+    }
+
+    private static Result emailTaken(String email) {
+        return Result.failure(Constants.ERROR_CODE_EMAIL_TAKEN,
+                "An account already exists for " + email);
+    }
+}
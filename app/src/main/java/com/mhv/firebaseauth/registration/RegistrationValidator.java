@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.registration;
+
+import java.util.regex.Pattern;
+
+/**
+ * Checks registration input before anything is sent to the backend.
+ */
+public class RegistrationValidator {
+
+    // Firebase rejects passwords shorter than this.
+    public static final int MIN_PASSWORD_LENGTH = 6;
+    public static final int MAX_NAME_LENGTH = 64;
+
+    // Deliberately loose, the backend has the final word. android.util.Patterns isn't
+    // available to the JVM tests.
+    private static final Pattern EMAIL = Pattern.compile("[^@\\s]+@[^@\\s]+\\.[^@\\s]+");
+
+    private RegistrationValidator() {
+    }
+
+    /**
+     * @return a message describing what's wrong with the input, or null if it's valid
+     */
+    public static String validate(String userName, String email, String password) {
+        if (userName == null || userName.trim().isEmpty()) {
+            return "Please enter a user name.";
+        }
+        if (userName.length() > MAX_NAME_LENGTH) {
+            return "User name must be at most " + MAX_NAME_LENGTH + " characters.";
+        }
+        if (email == null || !EMAIL.matcher(email).matches()) {
+            return "Please enter a valid email address.";
+        }
+        if (password == null || password.length() < MIN_PASSWORD_LENGTH) {
+            return "Password must be at least " + MIN_PASSWORD_LENGTH + " characters.";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.token;
+
+import android.util.Base64;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.auth.GetTokenResult;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link IdTokenProvider.Source} backed by a signed in {@link FirebaseUser}.
+ */
+public class FirebaseIdTokenSource implements IdTokenProvider.Source {
+
+    private static final long FETCH_TIMEOUT_SECONDS = 30;
+
+    private final FirebaseUser mUser;
+
+    public FirebaseIdTokenSource(FirebaseUser user) {
+        mUser = user;
+    }
+
+    @Override
+    public IdTokenProvider.IdToken fetch(boolean forceRefresh) throws Exception {
+        final GetTokenResult result = Tasks.await(mUser.getIdToken(forceRefresh),
+                FETCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        final String token = result.getToken();
+        return new IdTokenProvider.IdToken(token,
+                expiresAtMillis(token) - System.currentTimeMillis());
+    }
+
+    @Override
+    public String accountName() {
+        return mUser.getEmail();
+    }
+
+    // The SDK doesn't tell us when the token expires, read the exp claim ourselves.
+    private static long expiresAtMillis(String token) throws JSONException {
+        final String[] parts = token.split("\\.");
+        if (parts.length < 2) {
+            throw new JSONException("Malformed ID token");
+        }
+        final byte[] payload = Base64.decode(parts[1],
+                Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP);
+        final JSONObject claims = new JSONObject(new String(payload));
+        return TimeUnit.SECONDS.toMillis(claims.getLong("exp"));
+    }
+}
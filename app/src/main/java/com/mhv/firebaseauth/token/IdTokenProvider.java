@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.token;
+
+import com.mhv.firebaseauth.trace.AuthTrace;
+import com.mhv.firebaseauth.trace.AuthTraceRecorder;
+import com.mhv.firebaseauth.util.SingleFlight;
+import com.mhv.firebaseauth.util.Ticker;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the signed in user's backend ID token in memory.
+ *
+ * While the token is valid it is handed out without touching the network. Once it
+ * gets within {@link #DEFAULT_REFRESH_WINDOW_MILLIS} of expiring, the current token is
+ * still returned but a single refresh is started in the background. Callers that find
+ * no usable token block on a refresh instead. Either way, concurrent callers share one
+ * backend request.
+ *
+ * {@link #getToken()} may block and must not be called from the main thread.
+ */
+public class IdTokenProvider {
+
+    // Firebase ID tokens live for an hour, start refreshing five minutes before that.
+    public static final long DEFAULT_REFRESH_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final IdTokenProvider sInstance = new IdTokenProvider(
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "IdTokenRefresh");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }), DEFAULT_REFRESH_WINDOW_MILLIS, Ticker.SYSTEM);
+
+    /**
+     * Where tokens come from, normally the Firebase user but a local stand-in in tests.
+     */
+    public interface Source {
+
+        /**
+         * Fetches an ID token, blocking until the backend answers.
+         *
+         * @param forceRefresh true to get a new token even if the backend has a cached one
+         */
+        IdToken fetch(boolean forceRefresh) throws Exception;
+
+        /**
+         * Account name used when tracing refreshes.
+         */
+        String accountName();
+    }
+
+    public static final class IdToken {
+
+        public final String token;
+        public final long expiresInMillis;
+
+        /**
+         * @param expiresInMillis how long the token is valid for from the moment it
+         *                        was fetched
+         */
+        public IdToken(String token, long expiresInMillis) {
+            this.token = token;
+            this.expiresInMillis = expiresInMillis;
+        }
+    }
+
+    private static final class Entry {
+
+        final Source source;
+        final String token;
+        final long refreshAt;
+        final long expiresAt;
+
+        Entry(Source source, String token, long refreshAt, long expiresAt) {
+            this.source = source;
+            this.token = token;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Executor mExecutor;
+    private final long mRefreshWindowNanos;
+    private final Ticker mTicker;
+    private final SingleFlight<Source, Entry> mRefreshes = new SingleFlight<>();
+
+    private volatile Source mSource;
+    private volatile Entry mEntry;
+    // Set by invalidate(), the backend may still have the rejected token cached.
+    private volatile boolean mForceRefresh;
+
+    public static IdTokenProvider getInstance() {
+        return sInstance;
+    }
+
+    public IdTokenProvider(Executor executor, long refreshWindowMillis, Ticker ticker) {
+        mExecutor = executor;
+        mRefreshWindowNanos = TimeUnit.MILLISECONDS.toNanos(refreshWindowMillis);
+        mTicker = ticker;
+    }
+
+    /**
+     * Switches to a newly signed in user, dropping any token of the previous one.
+     */
+    public void setSource(Source source) {
+        mSource = source;
+        mEntry = null;
+        mForceRefresh = false;
+    }
+
+    public void clear() {
+        setSource(null);
+    }
+
+    /**
+     * Returns a valid token if one is cached, without blocking or refreshing.
+     */
+    public String peekToken() {
+        final Entry entry = mEntry;
+        if (entry != null && entry.source == mSource && mTicker.read() < entry.expiresAt) {
+            return entry.token;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a valid ID token for the current user, or null if nobody is signed in.
+     */
+    public String getToken() throws Exception {
+        final Source source = mSource;
+        if (source == null) {
+            return null;
+        }
+
+        final Entry entry = mEntry;
+        final long now = mTicker.read();
+        if (entry != null && entry.source == source && now < entry.expiresAt) {
+            if (now >= entry.refreshAt) {
+                refreshInBackground(source);
+            }
+            return entry.token;
+        }
+
+        final Entry refreshed = refresh(source, entry != null);
+        return refreshed != null ? refreshed.token : null;
+    }
+
+    /**
+     * Forgets {@code token}, e.g. after the backend rejected it, so the next
+     * {@link #getToken()} fetches a new one, bypassing the backend's own cache. Does
+     * nothing if a newer token is cached.
+     */
+    public void invalidate(String token) {
+        final Entry entry = mEntry;
+        if (token != null && entry != null && entry.token.equals(token)) {
+            mForceRefresh = true;
+            mEntry = null;
+        }
+    }
+
+    private void refreshInBackground(final Source source) {
+        if (mRefreshes.isInFlight(source)) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh(source, true);
+                } catch (Exception e) {
+                    // The current token is still valid, the next caller will retry.
+                }
+            }
+        });
+    }
+
+    private Entry refresh(final Source source, final boolean force) throws Exception {
+        return mRefreshes.execute(source, new Callable<Entry>() {
+            @Override
+            public Entry call() throws Exception {
+                // Someone may have refreshed while we were queued.
+                final Entry current = mEntry;
+                final long now = mTicker.read();
+                if (current != null && current.source == source && now < current.refreshAt) {
+                    return current;
+                }
+
+                final AuthTraceRecorder recorder = AuthTraceRecorder.getInstance();
+                final long traceStart = recorder.now();
+                final IdToken idToken;
+                try {
+                    idToken = source.fetch(force || mForceRefresh);
+                } catch (Exception e) {
+                    recorder.record(AuthTrace.TYPE_REFRESH, AuthTrace.OUTCOME_FAILURE,
+                            source.accountName(), traceStart);
+                    throw e;
+                }
+                recorder.record(AuthTrace.TYPE_REFRESH, AuthTrace.OUTCOME_SUCCESS,
+                        source.accountName(), traceStart);
+
+                final long fetchedAt = mTicker.read();
+                final long lifetime = TimeUnit.MILLISECONDS.toNanos(idToken.expiresInMillis);
+                final Entry entry = new Entry(source, idToken.token,
+                        fetchedAt + lifetime - Math.min(mRefreshWindowNanos, lifetime / 2),
+                        fetchedAt + lifetime);
+
+                // Don't resurrect a token for a user that signed out meanwhile.
+                if (mSource == source) {
+                    mForceRefresh = false;
+                    mEntry = entry;
+                }
+                return entry;
+            }
+        });
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.token;
+
+import com.mhv.firebaseauth.util.BloomFilter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tokens revoked before their {@code exp}, persisted to an append-only file.
+ *
+ * Tokens are identified by a 128 bit fingerprint, the token itself is never stored.
+ * A {@link BloomFilter} sits in front of the exact set: a token that was never revoked
+ * is cleared by a handful of bit tests without taking a lock, which is the common case
+ * on every getAuthToken. Only filter hits go on to the exact lookup. Revoking a token
+ * sets its bits in place, the filter is never rebuilt.
+ *
+ * Each record keeps the token's expiry. A revoked token that has expired is rejected
+ * anyway, so {@link #load} drops those and rewrites the file without them.
+ */
+public class RevocationList {
+
+    private static final int MAGIC = 0x4652564B; // "FRVK"
+    private static final int VERSION = 2;
+
+    private final File mFile;
+    private final BloomFilter mFilter;
+    private final FingerprintSet mRevoked = new FingerprintSet();
+    private DataOutputStream mAppender;
+    // Lookups the filter let through to the exact set, guarded by this.
+    private long mExactLookups;
+
+    /**
+     * Loads the revocation list stored in {@code file}, creating an empty one if the
+     * file doesn't exist yet. A record cut short by a crash is ignored. Tokens that
+     * expired by {@code nowMillis} are dropped and the file compacted.
+     *
+     * @param file where revocations are persisted
+     * @param expectedEntries entries the Bloom filter is sized for
+     * @param falsePositiveRate Bloom filter false positive rate at {@code expectedEntries}
+     */
+    public static RevocationList load(File file, int expectedEntries, double falsePositiveRate,
+                                      long nowMillis) throws IOException {
+        final RevocationList list = new RevocationList(file,
+                new BloomFilter(expectedEntries, falsePositiveRate));
+        if (file.length() > 0 && list.read(nowMillis)) {
+            list.rewrite();
+        }
+        return list;
+    }
+
+    /**
+     * Like {@link #load}, but a file that can't be read is deleted and a new, empty list
+     * persisted in its place. Otherwise every start would fail on the same file and
+     * nothing revoked from then on would be saved.
+     *
+     * @throws IOException if even a fresh file can't be set up
+     */
+    public static RevocationList loadOrReset(File file, int expectedEntries,
+                                             double falsePositiveRate, long nowMillis)
+            throws IOException {
+        try {
+            return load(file, expectedEntries, falsePositiveRate, nowMillis);
+        } catch (IOException e) {
+            // It won't get any better, start over.
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Unable to delete unreadable " + file, e);
+            }
+            return load(file, expectedEntries, falsePositiveRate, nowMillis);
+        }
+    }
+
+    /**
+     * Creates an empty revocation list that isn't persisted anywhere.
+     */
+    public static RevocationList inMemory(int expectedEntries, double falsePositiveRate) {
+        return new RevocationList(null, new BloomFilter(expectedEntries, falsePositiveRate));
+    }
+
+    private RevocationList(File file, BloomFilter filter) {
+        mFile = file;
+        mFilter = filter;
+    }
+
+    public boolean isRevoked(String token) {
+        if (token == null) {
+            return false;
+        }
+        final long hash1 = BloomFilter.hash1(token);
+        final long hash2 = BloomFilter.hash2(token);
+        if (!mFilter.mightContain(hash1, hash2)) {
+            return false;
+        }
+        synchronized (this) {
+            mExactLookups++;
+            return mRevoked.contains(hash1, hash2);
+        }
+    }
+
+    /**
+     * Revokes {@code token} and appends it to the backing file.
+     *
+     * @param expiresAtMillis when the token expires, after which it can be forgotten
+     */
+    public void revoke(String token, long expiresAtMillis) throws IOException {
+        final long hash1 = BloomFilter.hash1(token);
+        final long hash2 = BloomFilter.hash2(token);
+        synchronized (this) {
+            if (!mRevoked.add(hash1, hash2, expiresAtMillis)) {
+                return;
+            }
+            if (mFile != null) {
+                final DataOutputStream out = appender();
+                writeRecord(out, hash1, hash2, expiresAtMillis);
+                out.flush();
+            }
+        }
+        // Only set the bits once the exact entry is in place, so a filter hit always
+        // finds it.
+        mFilter.put(hash1, hash2);
+    }
+
+    /**
+     * @return how many lookups got past the Bloom filter so far
+     */
+    synchronized long exactLookups() {
+        return mExactLookups;
+    }
+
+    /**
+     * @return the share of never revoked tokens the filter is expected to let through
+     */
+    synchronized double expectedPassThroughRate() {
+        return mFilter.expectedFalsePositiveRate(mRevoked.size());
+    }
+
+    public synchronized int size() {
+        return mRevoked.size();
+    }
+
+    /**
+     * @return memory held by the filter and the fingerprints
+     */
+    public synchronized long sizeInBytes() {
+        return mFilter.sizeInBytes() + mRevoked.capacity() * 24L;
+    }
+
+    public synchronized void close() throws IOException {
+        if (mAppender != null) {
+            try {
+                mAppender.close();
+            } finally {
+                mAppender = null;
+            }
+        }
+    }
+
+    /**
+     * @return whether the file holds records that weren't kept, expired or duplicate
+     */
+    private boolean read(long nowMillis) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)));
+        boolean dropped = false;
+        try {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IOException("Unsupported revocation list " + mFile);
+            }
+            while (true) {
+                final long hash1 = in.readLong();
+                final long hash2 = in.readLong();
+                final long expiresAt = in.readLong();
+                if (expiresAt > nowMillis && mRevoked.add(hash1, hash2, expiresAt)) {
+                    mFilter.put(hash1, hash2);
+                } else {
+                    dropped = true;
+                }
+            }
+        } catch (EOFException e) {
+            // End of file, or a record cut short by a crash.
+        } finally {
+            in.close();
+        }
+        return dropped;
+    }
+
+    /**
+     * Replaces the file with just the entries currently held.
+     */
+    private void rewrite() throws IOException {
+        final File temp = new File(mFile.getPath() + ".tmp");
+        final FileOutputStream file = new FileOutputStream(temp);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            writeHeader(out);
+            mRevoked.writeTo(out);
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            throw new IOException("Unable to replace " + mFile);
+        }
+    }
+
+    private DataOutputStream appender() throws IOException {
+        if (mAppender == null) {
+            final boolean isNew = mFile.length() == 0;
+            try {
+                mAppender = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(mFile, true)));
+            } catch (FileNotFoundException e) {
+                throw new IOException("Unable to open " + mFile, e);
+            }
+            if (isNew) {
+                writeHeader(mAppender);
+            }
+        }
+        return mAppender;
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    private static void writeRecord(DataOutputStream out, long hash1, long hash2,
+                                    long expiresAtMillis) throws IOException {
+        out.writeLong(hash1);
+        out.writeLong(hash2);
+        out.writeLong(expiresAtMillis);
+    }
+
+    /**
+     * Open addressing hash set of 128 bit fingerprints with their expiry. The second
+     * half is always odd (see {@link BloomFilter#hash2}), so 0 marks an empty slot. Not
+     * thread safe.
+     */
+    private static class FingerprintSet {
+
+        private long[] mHash1 = new long[16];
+        private long[] mHash2 = new long[16];
+        private long[] mExpiresAt = new long[16];
+        private int mSize;
+
+        boolean contains(long hash1, long hash2) {
+            final int mask = mHash2.length - 1;
+            for (int i = (int) hash1 & mask; mHash2[i] != 0; i = (i + 1) & mask) {
+                if (mHash1[i] == hash1 && mHash2[i] == hash2) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean add(long hash1, long hash2, long expiresAt) {
+            if (contains(hash1, hash2)) {
+                return false;
+            }
+            if ((mSize + 1) * 4L > mHash2.length * 3L) {
+                grow();
+            }
+            insert(hash1, hash2, expiresAt);
+            mSize++;
+            return true;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            for (int i = 0; i < mHash2.length; i++) {
+                if (mHash2[i] != 0) {
+                    writeRecord(out, mHash1[i], mHash2[i], mExpiresAt[i]);
+                }
+            }
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        int capacity() {
+            return mHash2.length;
+        }
+
+        private void insert(long hash1, long hash2, long expiresAt) {
+            final int mask = mHash2.length - 1;
+            int i = (int) hash1 & mask;
+            while (mHash2[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            mHash1[i] = hash1;
+            mHash2[i] = hash2;
+            mExpiresAt[i] = expiresAt;
+        }
+
+        private void grow() {
+            final long[] oldHash1 = mHash1;
+            final long[] oldHash2 = mHash2;
+            final long[] oldExpiresAt = mExpiresAt;
+            mHash1 = new long[oldHash1.length * 2];
+            mHash2 = new long[oldHash2.length * 2];
+            mExpiresAt = new long[oldExpiresAt.length * 2];
+            for (int i = 0; i < oldHash2.length; i++) {
+                if (oldHash2[i] != 0) {
+                    insert(oldHash1[i], oldHash2[i], oldExpiresAt[i]);
+                }
+            }
+        }
+    }
+}
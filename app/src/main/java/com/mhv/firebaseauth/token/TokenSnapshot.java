@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.token;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mhv.firebaseauth.util.Base64Url;
+import com.mhv.firebaseauth.util.BloomFilter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable copy of what we know about each account: email, uid, when its token
+ * expires and a fingerprint of that token. It's what {@link TokenSnapshotStore}
+ * persists, so on startup the accounts can be shown without asking AccountManager or
+ * decoding any JWT. The token itself stays in AccountManager only.
+ */
+public class TokenSnapshot {
+
+    public static final TokenSnapshot EMPTY =
+            new TokenSnapshot(0, Collections.<Entry>emptyList());
+
+    private static final ObjectMapper sMapper = new ObjectMapper();
+
+    public static class Entry {
+
+        private final String mEmail;
+        private final String mUid;
+        private final long mExpiresAtMillis;
+        private final long mTokenHash1;
+        private final long mTokenHash2;
+
+        public Entry(String email, String uid, long expiresAtMillis, long tokenHash1,
+                     long tokenHash2) {
+            if (email == null || uid == null) {
+                throw new IllegalArgumentException("email and uid are required");
+            }
+            mEmail = email;
+            mUid = uid;
+            mExpiresAtMillis = expiresAtMillis;
+            mTokenHash1 = tokenHash1;
+            mTokenHash2 = tokenHash2;
+        }
+
+        /**
+         * Reads the uid and exp claims out of {@code authToken}.
+         *
+         * @throws IOException if the token's payload can't be decoded
+         */
+        public static Entry fromToken(String email, String authToken) throws IOException {
+            final JsonNode payload = payload(authToken);
+            return new Entry(email, payload.path("uid").asText(email), expiresAtMillis(payload),
+                    BloomFilter.hash1(authToken), BloomFilter.hash2(authToken));
+        }
+
+        public String getEmail() {
+            return mEmail;
+        }
+
+        public String getUid() {
+            return mUid;
+        }
+
+        public long getExpiresAtMillis() {
+            return mExpiresAtMillis;
+        }
+
+        public long getTokenHash1() {
+            return mTokenHash1;
+        }
+
+        public long getTokenHash2() {
+            return mTokenHash2;
+        }
+
+        /**
+         * @return whether this entry was written for {@code authToken}
+         */
+        public boolean matches(String authToken) {
+            return authToken != null && BloomFilter.hash1(authToken) == mTokenHash1
+                    && BloomFilter.hash2(authToken) == mTokenHash2;
+        }
+
+        public boolean isExpired(long nowMillis) {
+            return nowMillis >= mExpiresAtMillis;
+        }
+    }
+
+    private final long mWrittenAtMillis;
+    private final List<Entry> mEntries;
+
+    /**
+     * Reads the exp claim out of {@code authToken}.
+     *
+     * @throws IOException if the token's payload can't be decoded or has no exp
+     */
+    public static long expiresAtMillis(String authToken) throws IOException {
+        return expiresAtMillis(payload(authToken));
+    }
+
+    private static JsonNode payload(String authToken) throws IOException {
+        try {
+            return sMapper.readTree(Base64Url.decodeJwtPayload(authToken));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed token", e);
+        }
+    }
+
+    private static long expiresAtMillis(JsonNode payload) throws IOException {
+        // Our tokens carry exp as a string, Firebase's as a number. asLong() reads both.
+        final long exp = payload.path("exp").asLong(0);
+        if (exp <= 0) {
+            throw new IOException("Token has no exp claim");
+        }
+        return TimeUnit.SECONDS.toMillis(exp);
+    }
+
+    public TokenSnapshot(long writtenAtMillis, List<Entry> entries) {
+        mWrittenAtMillis = writtenAtMillis;
+        mEntries = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    public long getWrittenAtMillis() {
+        return mWrittenAtMillis;
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * @return the entry for {@code email} or null if there is none
+     */
+    public Entry get(String email) {
+        // A handful of accounts at most, a scan beats building a map.
+        for (Entry entry : mEntries) {
+            if (entry.getEmail().equals(email)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a copy of this snapshot with {@code entry} added or replacing the entry
+     * for the same email
+     */
+    public TokenSnapshot with(Entry entry, long nowMillis) {
+        final List<Entry> entries = new ArrayList<>(mEntries.size() + 1);
+        for (Entry existing : mEntries) {
+            if (!existing.getEmail().equals(entry.getEmail())) {
+                entries.add(existing);
+            }
+        }
+        entries.add(entry);
+        return new TokenSnapshot(nowMillis, entries);
+    }
+
+    /**
+     * @return a copy of this snapshot without the entry for {@code email}
+     */
+    public TokenSnapshot without(String email, long nowMillis) {
+        final List<Entry> entries = new ArrayList<>(mEntries.size());
+        for (Entry existing : mEntries) {
+            if (!existing.getEmail().equals(email)) {
+                entries.add(existing);
+            }
+        }
+        return new TokenSnapshot(nowMillis, entries);
+    }
+}
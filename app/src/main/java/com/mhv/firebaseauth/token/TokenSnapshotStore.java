@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.token;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Persists a {@link TokenSnapshot} to a small binary file.
+ *
+ * Writes go to a temporary file that is synced and then renamed over the old one, so a
+ * crash leaves either the old or the new snapshot, never half of one. Reads map the
+ * file and parse it in place. The file ends with a CRC32 of everything before it, a
+ * snapshot that fails the check, or has an unknown version, is reported as an
+ * {@link IOException} and callers go back to AccountManager.
+ *
+ * Layout, big endian: magic "FSNP", version (byte), written at millis (long), entry
+ * count (int), then per entry expires at millis (long), the token fingerprint (two
+ * longs) and email and uid, each an int length followed by UTF-8 bytes. Last comes the
+ * CRC32 (int).
+ */
+public class TokenSnapshotStore {
+
+    private static final int MAGIC = 0x46534E50; // "FSNP"
+    // Version 1 stored the raw token and is no longer read.
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 4 + 1 + 8 + 4;
+    private static final int CRC_SIZE = 4;
+    // A few accounts, anything near this is garbage.
+    private static final int MAX_FILE_SIZE = 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final File mTempFile;
+
+    // Last snapshot read or written, so updates don't need to go back to disk.
+    private TokenSnapshot mCurrent;
+
+    public TokenSnapshotStore(File file) {
+        mFile = file;
+        mTempFile = new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * @return the stored snapshot, {@link TokenSnapshot#EMPTY} if there is none yet
+     * @throws IOException if the snapshot can't be read or is corrupt. The bad file is
+     * deleted, so later reads return {@link TokenSnapshot#EMPTY}.
+     */
+    public synchronized TokenSnapshot read() throws IOException {
+        if (mCurrent == null) {
+            if (!mFile.exists()) {
+                mCurrent = TokenSnapshot.EMPTY;
+            } else {
+                try {
+                    mCurrent = readFile();
+                } catch (IOException e) {
+                    // It won't get any better, report it once and start over.
+                    mFile.delete();
+                    mCurrent = TokenSnapshot.EMPTY;
+                    throw e;
+                }
+            }
+        }
+        return mCurrent;
+    }
+
+    /**
+     * Replaces the stored snapshot.
+     */
+    public synchronized void write(TokenSnapshot snapshot) throws IOException {
+        final byte[] bytes = encode(snapshot);
+        final FileOutputStream out = new FileOutputStream(mTempFile);
+        try {
+            out.write(bytes);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!mTempFile.renameTo(mFile)) {
+            mTempFile.delete();
+            throw new IOException("Unable to replace " + mFile);
+        }
+        mCurrent = snapshot;
+    }
+
+    /**
+     * Adds or replaces the entry for {@code entry}'s account. A snapshot that can't be
+     * read is replaced rather than failing the update.
+     */
+    public synchronized void put(TokenSnapshot.Entry entry) throws IOException {
+        write(readOrEmpty().with(entry, System.currentTimeMillis()));
+    }
+
+    /**
+     * Removes the entry for {@code email}, if any.
+     */
+    public synchronized void remove(String email) throws IOException {
+        final TokenSnapshot snapshot = readOrEmpty();
+        if (snapshot.get(email) != null) {
+            write(snapshot.without(email, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Deletes the stored snapshot.
+     */
+    public synchronized void clear() {
+        mFile.delete();
+        mCurrent = TokenSnapshot.EMPTY;
+    }
+
+    private TokenSnapshot readOrEmpty() {
+        try {
+            return read();
+        } catch (IOException e) {
+            return TokenSnapshot.EMPTY;
+        }
+    }
+
+    private TokenSnapshot readFile() throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            final long size = channel.size();
+            if (size < HEADER_SIZE + CRC_SIZE || size > MAX_FILE_SIZE) {
+                throw new IOException("Corrupt snapshot, size " + size);
+            }
+            final MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return decode(buffer, (int) size);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt snapshot", e);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static TokenSnapshot decode(ByteBuffer buffer, int size) throws IOException {
+        final int end = size - CRC_SIZE;
+        if (buffer.getInt(end) != crc(buffer, end)) {
+            throw new IOException("Corrupt snapshot, checksum mismatch");
+        }
+
+        buffer.position(0);
+        buffer.limit(end);
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a token snapshot");
+        }
+        final int version = buffer.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        final long writtenAtMillis = buffer.getLong();
+        final int count = buffer.getInt();
+        if (count < 0) {
+            throw new IOException("Corrupt snapshot, " + count + " entries");
+        }
+
+        final List<TokenSnapshot.Entry> entries = new ArrayList<>(Math.min(count, 16));
+        for (int i = 0; i < count; i++) {
+            final long expiresAtMillis = buffer.getLong();
+            final long tokenHash1 = buffer.getLong();
+            final long tokenHash2 = buffer.getLong();
+            final String email = readString(buffer);
+            final String uid = readString(buffer);
+            entries.add(new TokenSnapshot.Entry(email, uid, expiresAtMillis, tokenHash1,
+                    tokenHash2));
+        }
+        if (buffer.hasRemaining()) {
+            throw new IOException("Corrupt snapshot, trailing bytes");
+        }
+        return new TokenSnapshot(writtenAtMillis, entries);
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Corrupt snapshot, string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static int crc(ByteBuffer buffer, int length) {
+        // CRC32.update(ByteBuffer) needs API 26, go through a small array instead.
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[Math.min(length, 4096)];
+        buffer.position(0);
+        for (int remaining = length; remaining > 0; ) {
+            final int n = Math.min(remaining, chunk.length);
+            buffer.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+            remaining -= n;
+        }
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(TokenSnapshot snapshot) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(snapshot.getWrittenAtMillis());
+        out.writeInt(snapshot.getEntries().size());
+        for (TokenSnapshot.Entry entry : snapshot.getEntries()) {
+            out.writeLong(entry.getExpiresAtMillis());
+            out.writeLong(entry.getTokenHash1());
+            out.writeLong(entry.getTokenHash2());
+            writeString(out, entry.getEmail());
+            writeString(out, entry.getUid());
+        }
+        out.flush();
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
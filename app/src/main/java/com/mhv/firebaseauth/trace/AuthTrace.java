@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.trace;
+
+/**
+ * Binary format shared by {@link AuthTraceRecorder}, {@link AuthTraceReader} and
+ * {@link AuthTraceReplayer}.
+ *
+ * A trace starts with a header (magic, version, wall clock start time in millis)
+ * followed by one record per finished auth operation:
+ *
+ * <pre>
+ * type       byte
+ * outcome    byte
+ * start      zigzag varlong, nanos relative to the start of the previous record
+ * duration   varlong, nanos
+ * account    int, hash of the account name
+ * </pre>
+ *
+ * Tokens, passwords and account names are never written; only a hash of the account
+ * name is kept so a replay can still tell different accounts apart.
+ */
+public final class AuthTrace {
+
+    static final int MAGIC = 0x46415452; // "FATR"
+    static final int VERSION = 1;
+
+    public static final byte TYPE_GET_AUTH_TOKEN = 1;
+    public static final byte TYPE_LOGIN = 2;
+    public static final byte TYPE_REGISTER = 3;
+    public static final byte TYPE_REFRESH = 4;
+
+    public static final byte OUTCOME_SUCCESS = 1;
+    public static final byte OUTCOME_FAILURE = 2;
+    public static final byte OUTCOME_RATE_LIMITED = 3;
+    // getAuthToken answered from the AccountManager cache without minting.
+    public static final byte OUTCOME_CACHED = 4;
+    // getAuthToken had to send the user back to the login screen.
+    public static final byte OUTCOME_PROMPT = 5;
+
+    private AuthTrace() {
+    }
+
+    public static String typeName(byte type) {
+        switch (type) {
+            case TYPE_GET_AUTH_TOKEN:
+                return "getAuthToken";
+            case TYPE_LOGIN:
+                return "login";
+            case TYPE_REGISTER:
+                return "register";
+            case TYPE_REFRESH:
+                return "refresh";
+            default:
+                return "type" + type;
+        }
+    }
+
+    /**
+     * Stable 32 bit FNV-1a hash of the account name.
+     */
+    public static int accountHash(String accountName) {
+        if (accountName == null) {
+            return 0;
+        }
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < accountName.length(); i++) {
+            hash ^= accountName.charAt(i);
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * A single recorded operation.
+     */
+    public static final class Event {
+
+        public final byte type;
+        public final byte outcome;
+        // Nanoseconds since the first event of the trace.
+        public final long startNanos;
+        public final long durationNanos;
+        public final int account;
+
+        public Event(byte type, byte outcome, long startNanos, long durationNanos, int account) {
+            this.type = type;
+            this.outcome = outcome;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.account = account;
+        }
+
+        @Override
+        public String toString() {
+            return typeName(type) + "{outcome=" + outcome + ", start=" + startNanos
+                    + ", duration=" + durationNanos + ", account=" + account + "}";
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.trace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads traces written by {@link AuthTraceRecorder}.
+ */
+public class AuthTraceReader {
+
+    private AuthTraceReader() {
+    }
+
+    public static List<AuthTrace.Event> read(File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads every complete record from {@code in}. A record truncated by the process
+     * dying mid-write is dropped. Events are returned ordered by start time, with the
+     * first one starting at 0.
+     */
+    public static List<AuthTrace.Event> read(InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+
+        if (data.readInt() != AuthTrace.MAGIC) {
+            throw new IOException("Not an auth trace");
+        }
+        final int version = data.readUnsignedByte();
+        if (version != AuthTrace.VERSION) {
+            throw new IOException("Unsupported auth trace version " + version);
+        }
+        data.readLong(); // Wall clock start, informational only.
+
+        final List<AuthTrace.Event> events = new ArrayList<>();
+        long start = 0;
+        try {
+            while (true) {
+                final int type = data.read();
+                if (type < 0) {
+                    break;
+                }
+                final byte outcome = data.readByte();
+                start += unzigzag(readVarLong(data));
+                final long duration = readVarLong(data);
+                final int account = data.readInt();
+                events.add(new AuthTrace.Event((byte) type, outcome, start, duration, account));
+            }
+        } catch (EOFException e) {
+            // Truncated last record.
+        }
+
+        // Records are written as operations finish, so starts may be out of order.
+        Collections.sort(events, new Comparator<AuthTrace.Event>() {
+            @Override
+            public int compare(AuthTrace.Event a, AuthTrace.Event b) {
+                return a.startNanos < b.startNanos ? -1 : (a.startNanos == b.startNanos ? 0 : 1);
+            }
+        });
+
+        if (!events.isEmpty()) {
+            final long origin = events.get(0).startNanos;
+            for (int i = 0; i < events.size(); i++) {
+                final AuthTrace.Event e = events.get(i);
+                events.set(i, new AuthTrace.Event(e.type, e.outcome,
+                        e.startNanos - origin, e.durationNanos, e.account));
+            }
+        }
+        return events;
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IOException("Malformed varlong");
+            }
+        }
+    }
+}
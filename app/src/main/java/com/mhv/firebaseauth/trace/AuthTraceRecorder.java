@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.trace;
+
+import com.mhv.firebaseauth.util.Ticker;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records finished auth operations to a compact binary trace, see {@link AuthTrace}.
+ *
+ * Recording is off until {@link #start(File)} is called, and while off
+ * {@link #record(byte, byte, String, long)} is a single volatile read. Callers grab
+ * {@link #now()} when an operation starts and call {@code record} once it finishes.
+ */
+public class AuthTraceRecorder {
+
+    private static final AuthTraceRecorder sInstance = new AuthTraceRecorder(Ticker.SYSTEM);
+
+    private final Ticker mTicker;
+
+    private volatile boolean mRecording;
+    private DataOutputStream mOut;
+    private long mPreviousStart;
+
+    public static AuthTraceRecorder getInstance() {
+        return sInstance;
+    }
+
+    public AuthTraceRecorder(Ticker ticker) {
+        mTicker = ticker;
+    }
+
+    public long now() {
+        return mTicker.read();
+    }
+
+    public boolean isRecording() {
+        return mRecording;
+    }
+
+    /**
+     * Starts writing a new trace to {@code file}, replacing any trace in progress.
+     */
+    public synchronized void start(File file) throws IOException {
+        start(new FileOutputStream(file));
+    }
+
+    public synchronized void start(OutputStream out) throws IOException {
+        stop();
+
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+        mOut.writeInt(AuthTrace.MAGIC);
+        mOut.writeByte(AuthTrace.VERSION);
+        mOut.writeLong(System.currentTimeMillis());
+        mOut.flush();
+
+        mPreviousStart = mTicker.read();
+        mRecording = true;
+    }
+
+    public synchronized void stop() throws IOException {
+        mRecording = false;
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } finally {
+                mOut = null;
+            }
+        }
+    }
+
+    /**
+     * Records an operation that started at {@code startNanos} (as returned by
+     * {@link #now()}) and has just finished.
+     */
+    public void record(byte type, byte outcome, String accountName, long startNanos) {
+        if (!mRecording) {
+            return;
+        }
+
+        final long duration = mTicker.read() - startNanos;
+        final int account = AuthTrace.accountHash(accountName);
+
+        synchronized (this) {
+            if (mOut == null) {
+                return;
+            }
+            try {
+                mOut.writeByte(type);
+                mOut.writeByte(outcome);
+                writeVarLong(mOut, zigzag(startNanos - mPreviousStart));
+                writeVarLong(mOut, duration);
+                mOut.writeInt(account);
+                // Auth operations are rare, flushing each one means a killed
+                // process loses nothing.
+                mOut.flush();
+                mPreviousStart = startNanos;
+            } catch (IOException e) {
+                // Tracing must never break authentication, just give up on this trace.
+                mRecording = false;
+                try {
+                    mOut.close();
+                } catch (IOException ignored) {
+                    // Already failing, closing only releases the file descriptor.
+                }
+                mOut = null;
+            }
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.trace;
+
+import com.mhv.firebaseauth.util.Ticker;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds a recorded trace back through an auth pipeline and measures how it copes.
+ *
+ * Events are issued open loop at their recorded start times (divided by the replay
+ * speed), so a slow pipeline can't hold back the events behind it. Latency is measured
+ * from the time an event was due, not from when a worker picked it up, which keeps
+ * queueing delay in the numbers. Replaying the same trace against two versions of the
+ * pipeline and calling {@link ReplayReport#diff(ReplayReport)} gives the regression.
+ */
+public class AuthTraceReplayer {
+
+    /**
+     * The pipeline being replayed against. The app doesn't ship one: traces are pulled
+     * off a device and replayed from JVM tests, where a Target wires the plain Java
+     * auth code to a local backend stand-in.
+     */
+    public interface Target {
+
+        /**
+         * Performs the operation described by {@code event} and returns its outcome,
+         * one of the {@code AuthTrace.OUTCOME_*} constants.
+         */
+        byte execute(AuthTrace.Event event) throws Exception;
+    }
+
+    private final Target mTarget;
+    private final int mThreads;
+    private final Ticker mTicker;
+
+    public AuthTraceReplayer(Target target, int threads) {
+        this(target, threads, Ticker.SYSTEM);
+    }
+
+    AuthTraceReplayer(Target target, int threads, Ticker ticker) {
+        mTarget = target;
+        mThreads = threads;
+        mTicker = ticker;
+    }
+
+    /**
+     * Replays {@code events} and blocks until every one of them has finished.
+     *
+     * @param speed 1.0 replays at the recorded pace, 2.0 twice as fast, and 0 issues
+     *              every event immediately.
+     */
+    public ReplayReport replay(List<AuthTrace.Event> events, double speed)
+            throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        final ReplayReport report = new ReplayReport();
+        final CountDownLatch done = new CountDownLatch(events.size());
+
+        final long origin = mTicker.read();
+        try {
+            for (final AuthTrace.Event event : events) {
+                final long due = speed > 0
+                        ? origin + (long) (event.startNanos / speed) : origin;
+
+                final long wait = due - mTicker.read();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            final byte outcome = mTarget.execute(event);
+                            report.record(event, outcome, mTicker.read() - due);
+                        } catch (Exception e) {
+                            report.recordError(event, mTicker.read() - due);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        report.finish(mTicker.read() - origin);
+        return report;
+    }
+}
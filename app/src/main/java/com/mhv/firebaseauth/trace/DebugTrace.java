@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.trace;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.mhv.firebaseauth.BuildConfig;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Turns on auth session tracing for debug builds. Traces end up in
+ * {@code files/traces} and can be pulled with {@code adb} and fed to
+ * {@link AuthTraceReplayer}.
+ */
+public class DebugTrace {
+
+    private static final String TAG = "DebugTrace";
+
+    private static final String PREFIX = "auth-";
+    private static final String SUFFIX = ".trace";
+    // Every process start begins a new trace, keep the most recent ones only.
+    private static final int MAX_TRACES = 5;
+
+    private static boolean sStarted;
+
+    // Services call us from onCreate() on the main thread, the file work happens here.
+    private static final Executor sStarter = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "DebugTraceStart");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private DebugTrace() {
+    }
+
+    /**
+     * Starts recording in the background. Events finishing before the trace file is
+     * open aren't recorded.
+     */
+    public static void ensureStarted(Context context) {
+        if (!BuildConfig.DEBUG) {
+            return;
+        }
+        synchronized (DebugTrace.class) {
+            if (sStarted) {
+                return;
+            }
+            sStarted = true;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        sStarter.execute(new Runnable() {
+            @Override
+            public void run() {
+                start(appContext);
+            }
+        });
+    }
+
+    private static void start(Context context) {
+        final AuthTraceRecorder recorder = AuthTraceRecorder.getInstance();
+        synchronized (recorder) {
+            if (recorder.isRecording()) {
+                return;
+            }
+
+            final File dir = new File(context.getFilesDir(), "traces");
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                Log.w(TAG, "Unable to create " + dir);
+                return;
+            }
+
+            deleteOldTraces(dir, MAX_TRACES - 1);
+
+            final File file = new File(dir, PREFIX + System.currentTimeMillis() + SUFFIX);
+            try {
+                recorder.start(file);
+                Log.d(TAG, "Recording auth trace to " + file);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to start auth trace", e);
+            }
+        }
+    }
+
+    /**
+     * Deletes all but the {@code keep} newest traces in {@code dir}.
+     */
+    private static void deleteOldTraces(File dir, int keep) {
+        final File[] traces = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return traceMillis(file) >= 0;
+            }
+        });
+        if (traces == null || traces.length <= keep) {
+            return;
+        }
+
+        Arrays.sort(traces, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                final long ma = traceMillis(a);
+                final long mb = traceMillis(b);
+                return ma < mb ? -1 : (ma == mb ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < traces.length - keep; i++) {
+            if (!traces[i].delete()) {
+                Log.w(TAG, "Unable to delete " + traces[i]);
+            }
+        }
+    }
+
+    private static long traceMillis(File file) {
+        final String name = file.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
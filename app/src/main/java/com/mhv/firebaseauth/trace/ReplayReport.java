@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.trace;
+
+import com.mhv.firebaseauth.util.LatencyHistogram;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and throughput of a single {@link AuthTraceReplayer} run.
+ */
+public class ReplayReport {
+
+    private final LatencyHistogram mOverall = new LatencyHistogram();
+    private final Map<Byte, LatencyHistogram> mByType = new TreeMap<>();
+    private final AtomicLong mOutcomeMismatches = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private long mWallNanos;
+
+    void record(AuthTrace.Event event, byte outcome, long latencyNanos) {
+        histogramFor(event.type).record(latencyNanos);
+        mOverall.record(latencyNanos);
+        if (outcome != event.outcome) {
+            mOutcomeMismatches.incrementAndGet();
+        }
+    }
+
+    void recordError(AuthTrace.Event event, long latencyNanos) {
+        mErrors.incrementAndGet();
+        record(event, AuthTrace.OUTCOME_FAILURE, latencyNanos);
+    }
+
+    void finish(long wallNanos) {
+        mWallNanos = wallNanos;
+    }
+
+    private synchronized LatencyHistogram histogramFor(byte type) {
+        LatencyHistogram histogram = mByType.get(type);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            mByType.put(type, histogram);
+        }
+        return histogram;
+    }
+
+    public LatencyHistogram overall() {
+        return mOverall;
+    }
+
+    public synchronized LatencyHistogram forType(byte type) {
+        final LatencyHistogram histogram = mByType.get(type);
+        return histogram != null ? histogram : new LatencyHistogram();
+    }
+
+    public long events() {
+        return mOverall.count();
+    }
+
+    /**
+     * Events whose replayed outcome differed from the recorded one.
+     */
+    public long outcomeMismatches() {
+        return mOutcomeMismatches.get();
+    }
+
+    public long errors() {
+        return mErrors.get();
+    }
+
+    public double throughputPerSecond() {
+        return mWallNanos == 0 ? 0 : events() * (double) TimeUnit.SECONDS.toNanos(1) / mWallNanos;
+    }
+
+    /**
+     * Describes how this run compares to {@code baseline}, one line per operation type.
+     * Positive percentages mean this run was slower.
+     */
+    public String diff(ReplayReport baseline) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "throughput %.1f/s vs %.1f/s (%+.1f%%)%n",
+                throughputPerSecond(), baseline.throughputPerSecond(),
+                change(throughputPerSecond(), baseline.throughputPerSecond())));
+        appendDiff(sb, "all", mOverall, baseline.mOverall);
+
+        final Map<Byte, LatencyHistogram> types;
+        synchronized (this) {
+            types = new TreeMap<>(mByType);
+        }
+        for (Map.Entry<Byte, LatencyHistogram> entry : types.entrySet()) {
+            appendDiff(sb, AuthTrace.typeName(entry.getKey()), entry.getValue(),
+                    baseline.forType(entry.getKey()));
+        }
+        return sb.toString();
+    }
+
+    private static void appendDiff(StringBuilder sb, String name,
+                                   LatencyHistogram current, LatencyHistogram baseline) {
+        sb.append(String.format(Locale.US, "%-12s", name));
+        for (double p : new double[] {50, 95, 99}) {
+            final double now = current.percentileMillis(p);
+            final double before = baseline.percentileMillis(p);
+            sb.append(String.format(Locale.US, " p%.0f %.2fms vs %.2fms (%+.1f%%)",
+                    p, now, before, change(now, before)));
+        }
+        sb.append(String.format(Locale.US, "%n"));
+    }
+
+    private static double change(double now, double before) {
+        return before == 0 ? 0 : (now - before) * 100.0 / before;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%d events, %.1f/s, p50 %.2fms, p95 %.2fms, p99 %.2fms, %d mismatches, %d errors",
+                events(), throughputPerSecond(), mOverall.percentileMillis(50),
+                mOverall.percentileMillis(95), mOverall.percentileMillis(99),
+                outcomeMismatches(), errors());
+    }
+}
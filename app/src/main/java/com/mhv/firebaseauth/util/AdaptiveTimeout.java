@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Derives a timeout and a hedging delay for one backend operation from its recently
+ * observed latencies.
+ *
+ * Samples go into tumbling windows of {@code windowSize} latencies: once a window is
+ * full it becomes the one percentiles are read from and a fresh, empty window starts
+ * filling. The numbers therefore jump once per window instead of sliding with every
+ * sample, but still follow the backend as it speeds up or slows down. Until the first
+ * window fills up the configured bounds are used as is.
+ */
+public class AdaptiveTimeout {
+
+    private static final double TIMEOUT_PERCENTILE = 99;
+    private static final double HEDGE_PERCENTILE = 95;
+
+    private final int mWindowSize;
+    private final double mTimeoutMultiplier;
+    private final long mMinNanos;
+    private final long mMaxNanos;
+
+    private final AtomicReference<LatencyHistogram> mFilling =
+            new AtomicReference<>(new LatencyHistogram());
+    private volatile LatencyHistogram mComplete;
+
+    /**
+     * @param windowSize samples per window
+     * @param timeoutMultiplier how far above the observed p99 the timeout is set
+     * @param minNanos lower bound for the timeout
+     * @param maxNanos upper bound for the timeout, also used until enough samples exist
+     */
+    public AdaptiveTimeout(int windowSize, double timeoutMultiplier, long minNanos, long maxNanos) {
+        if (windowSize <= 0 || timeoutMultiplier < 1 || minNanos <= 0 || maxNanos < minNanos) {
+            throw new IllegalArgumentException("Invalid adaptive timeout settings");
+        }
+        mWindowSize = windowSize;
+        mTimeoutMultiplier = timeoutMultiplier;
+        mMinNanos = minNanos;
+        mMaxNanos = maxNanos;
+    }
+
+    public void record(long latencyNanos) {
+        final LatencyHistogram filling = mFilling.get();
+        filling.record(latencyNanos);
+        if (filling.count() >= mWindowSize
+                && mFilling.compareAndSet(filling, new LatencyHistogram())) {
+            mComplete = filling;
+        }
+    }
+
+    public boolean isWarm() {
+        return mComplete != null;
+    }
+
+    public long timeoutNanos() {
+        final LatencyHistogram complete = mComplete;
+        if (complete == null) {
+            return mMaxNanos;
+        }
+        final long timeout = (long) (complete.percentileNanos(TIMEOUT_PERCENTILE) * mTimeoutMultiplier);
+        return Math.max(mMinNanos, Math.min(mMaxNanos, timeout));
+    }
+
+    /**
+     * How long to wait for an answer before sending a hedged request, or -1 while there
+     * isn't enough data to tell.
+     */
+    public long hedgeDelayNanos() {
+        final LatencyHistogram complete = mComplete;
+        if (complete == null) {
+            return -1;
+        }
+        return Math.max(1, complete.percentileNanos(HEDGE_PERCENTILE));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide counters and latency histograms for the auth subsystem. Both are
+ * created on first use and are never removed, so callers can cache them.
+ */
+public class AuthMetrics {
+
+    public static final String LOGIN_RATE_LIMITED = "auth.login.rate_limited";
+    public static final String REGISTER_RATE_LIMITED = "auth.register.rate_limited";
+    public static final String GET_AUTH_TOKEN_RATE_LIMITED = "authenticator.get_auth_token.rate_limited";
+
+    // Time spent on the binder thread by each Authenticator method.
+    public static final String BINDER_ADD_ACCOUNT = "authenticator.binder.add_account";
+    public static final String BINDER_GET_AUTH_TOKEN = "authenticator.binder.get_auth_token";
+    public static final String BINDER_GET_AUTH_TOKEN_LABEL = "authenticator.binder.get_auth_token_label";
+    public static final String BINDER_HAS_FEATURES = "authenticator.binder.has_features";
+    public static final String BINDER_EDIT_PROPERTIES = "authenticator.binder.edit_properties";
+    public static final String BINDER_CONFIRM_CREDENTIALS = "authenticator.binder.confirm_credentials";
+    public static final String BINDER_UPDATE_CREDENTIALS = "authenticator.binder.update_credentials";
+    // Time from a getAuthToken call to its asynchronous answer.
+    public static final String GET_AUTH_TOKEN_ASYNC = "authenticator.get_auth_token.async";
+
+    // Registration end to end, and what happened to the token minted ahead of time.
+    public static final String REGISTER_PIPELINE = "auth.register.pipeline";
+    public static final String REGISTER_PREMINT_COMMITTED = "auth.register.premint.committed";
+    public static final String REGISTER_PREMINT_DISCARDED = "auth.register.premint.discarded";
+    public static final String REGISTER_PREMINT_RETRIED = "auth.register.premint.retried";
+
+    private static final AuthMetrics sInstance = new AuthMetrics();
+
+    private final ConcurrentMap<String, AtomicLong> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> mLatencies = new ConcurrentHashMap<>();
+
+    public static AuthMetrics getInstance() {
+        return sInstance;
+    }
+
+    public AtomicLong counter(String name) {
+        AtomicLong counter = mCounters.get(name);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public long increment(String name) {
+        return counter(name).incrementAndGet();
+    }
+
+    public long get(String name) {
+        final AtomicLong counter = mCounters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public LatencyHistogram latency(String name) {
+        LatencyHistogram histogram = mLatencies.get(name);
+        if (histogram == null) {
+            final LatencyHistogram created = new LatencyHistogram();
+            histogram = mLatencies.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    public void recordLatency(String name, long startNanos) {
+        latency(name).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns a sorted copy of every latency histogram.
+     */
+    public Map<String, LatencyHistogram> latencies() {
+        return new TreeMap<>(mLatencies);
+    }
+
+    /**
+     * Returns a sorted copy of every counter, suitable for logging or dumping.
+     */
+    public Map<String, Long> snapshot() {
+        final Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : mCounters.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+}
@@ -18,10 +18,14 @@ package com.mhv.firebaseauth.util;
 import android.util.Base64;
 import android.util.Log;
 
+import com.mhv.firebaseauth.profiling.AllocationProfiler;
+
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Collection;
+import java.util.Collections;
 
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
@@ -36,6 +40,28 @@ public class AuthUtils {
     // For more info about what's going on here, see:
     // https://firebase.google.com/docs/auth/admin/verify-id-tokens
     public static String generateFirebaseAuthToken(String userName) {
+        return generateFirebaseAuthToken(userName, Collections.<String>emptyList(),
+                Collections.<String>emptyList());
+    }
+
+    /**
+     * Same as {@link #generateFirebaseAuthToken(String)} but also adds custom
+     * {@code roles} and {@code permissions} claims, which Firebase copies into the
+     * user's ID tokens. See {@link com.mhv.firebaseauth.authz.AuthorizationEngine}.
+     */
+    public static String generateFirebaseAuthToken(String userName, Collection<String> roles,
+                                                   Collection<String> permissions) {
+        final AllocationProfiler.Scope allocations =
+                AllocationProfiler.getInstance().begin(AllocationProfiler.OP_MINT);
+        try {
+            return signFirebaseAuthToken(userName, roles, permissions);
+        } finally {
+            allocations.end();
+        }
+    }
+
+    private static String signFirebaseAuthToken(String userName, Collection<String> roles,
+                                                Collection<String> permissions) {
         Long nowSeconds = System.currentTimeMillis() / 1000;
 
         // TODO: Under ANY circumstance hardcode and/or commit private keys!!!
@@ -59,6 +85,7 @@ public class AuthUtils {
                             "\"uid\":\"" + userName + "\","                                                                          + "\n" +
                             "\"iat\":\"" + Long.toString(nowSeconds) + "\","                                                         + "\n" +
                             "\"exp\":\"" + Long.toString(nowSeconds + (60 * 60)) + "\"" /* Maximum expiration time is one hour */    + "\n" +
+                            claimsJson(roles, permissions)                                                                          +
                         "}"
                     )
                     .signWith(SignatureAlgorithm.RS256, kf.generatePrivate(spec)).compact();
@@ -74,4 +101,32 @@ public class AuthUtils {
             return null;
         }
     }
+
+    // Returns the "claims" member, starting with a comma, or nothing if there are none.
+    private static String claimsJson(Collection<String> roles, Collection<String> permissions) {
+        if (roles.isEmpty() && permissions.isEmpty()) {
+            return "";
+        }
+        return ",\"claims\":{\"roles\":" + jsonArray(roles)
+                + ",\"permissions\":" + jsonArray(permissions) + "}\n";
+    }
+
+    private static String jsonArray(Collection<String> values) {
+        final StringBuilder sb = new StringBuilder("[");
+        for (String value : values) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+            sb.append('"');
+        }
+        return sb.append(']').toString();
+    }
 }
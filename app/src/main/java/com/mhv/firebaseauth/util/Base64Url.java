@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.util;
+
+/**
+ * Decoder for the unpadded base64url segments of a JWT. android.util.Base64 isn't
+ * available to plain JVM tests and java.util.Base64 needs API 26.
+ */
+public class Base64Url {
+
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        for (int i = 0; i < DECODE.length; i++) {
+            DECODE[i] = -1;
+        }
+        final String alphabet =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = (byte) i;
+        }
+        // Be lenient with the regular alphabet too.
+        DECODE['+'] = 62;
+        DECODE['/'] = 63;
+    }
+
+    private Base64Url() {
+    }
+
+    /**
+     * Decodes {@code length} characters of {@code value} starting at {@code offset}.
+     * Trailing '=' padding is ignored.
+     *
+     * @throws IllegalArgumentException if the input isn't valid base64url
+     */
+    public static byte[] decode(CharSequence value, int offset, int length) {
+        int end = offset + length;
+        while (end > offset && value.charAt(end - 1) == '=') {
+            end--;
+        }
+
+        final int chars = end - offset;
+        if (chars % 4 == 1) {
+            throw new IllegalArgumentException("Invalid base64url length");
+        }
+
+        final byte[] out = new byte[chars * 3 / 4];
+        int buffer = 0;
+        int bits = 0;
+        int written = 0;
+        for (int i = offset; i < end; i++) {
+            final char c = value.charAt(i);
+            final int decoded = c < DECODE.length ? DECODE[c] : -1;
+            if (decoded < 0) {
+                throw new IllegalArgumentException("Invalid base64url character " + c);
+            }
+            buffer = (buffer << 6) | decoded;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                out[written++] = (byte) (buffer >> bits);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Decodes the payload (second segment) of a compact JWT.
+     */
+    public static byte[] decodeJwtPayload(String token) {
+        final int first = token.indexOf('.');
+        final int second = first < 0 ? -1 : token.indexOf('.', first + 1);
+        if (second < 0) {
+            throw new IllegalArgumentException("Not a compact JWT");
+        }
+        return decode(token, first + 1, second - first - 1);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size, lock free Bloom filter over 128 bit fingerprints (see {@link #hash1} and
+ * {@link #hash2}). Entries can be added at any time without rebuilding; the filter is
+ * sized once for an expected number of entries and its false positive rate slowly
+ * rises if more than that are added.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray mBits;
+    private final long mBitMask;
+    private final int mHashes;
+
+    /**
+     * @param expectedEntries number of entries the filter is sized for
+     * @param falsePositiveRate target false positive rate at {@code expectedEntries}
+     */
+    public BloomFilter(int expectedEntries, double falsePositiveRate) {
+        final int n = Math.max(1, expectedEntries);
+        final double bits = -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+
+        // Round up to a power of two so the index is a mask instead of a modulo.
+        long size = Long.highestOneBit(Math.max(64, (long) Math.ceil(bits)));
+        if (size < bits) {
+            size <<= 1;
+        }
+
+        mBits = new AtomicLongArray((int) (size >>> 6));
+        mBitMask = size - 1;
+        mHashes = Math.max(1, (int) Math.round(size / (double) n * Math.log(2)));
+    }
+
+    public void put(long hash1, long hash2) {
+        long combined = hash1;
+        for (int i = 0; i < mHashes; i++) {
+            final long bit = combined & mBitMask;
+            final int word = (int) (bit >>> 6);
+            final long mask = 1L << bit;
+
+            long current;
+            while (((current = mBits.get(word)) & mask) == 0) {
+                if (mBits.compareAndSet(word, current, current | mask)) {
+                    break;
+                }
+            }
+            combined += hash2;
+        }
+    }
+
+    /**
+     * @return false if the fingerprint was definitely never added.
+     */
+    public boolean mightContain(long hash1, long hash2) {
+        long combined = hash1;
+        for (int i = 0; i < mHashes; i++) {
+            final long bit = combined & mBitMask;
+            if ((mBits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+            combined += hash2;
+        }
+        return true;
+    }
+
+    public long sizeInBytes() {
+        return mBits.length() * 8L;
+    }
+
+    /**
+     * False positive rate expected once {@code entries} have been added. Since the size
+     * is rounded up to a power of two this is usually well below the configured rate.
+     */
+    public double expectedFalsePositiveRate(int entries) {
+        final double bits = mBitMask + 1.0;
+        return Math.pow(1 - Math.exp(-mHashes * (double) entries / bits), mHashes);
+    }
+
+    /**
+     * First half of the fingerprint of {@code value}. Does not allocate.
+     */
+    public static long hash1(CharSequence value) {
+        return hash(value, 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Second half of the fingerprint of {@code value}, always odd so that successive
+     * probes in {@link #put} never repeat.
+     */
+    public static long hash2(CharSequence value) {
+        return hash(value, 0xC2B2AE3D27D4EB4FL) | 1;
+    }
+
+    private static long hash(CharSequence value, long seed) {
+        long h = seed ^ value.length();
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * 0xFF51AFD7ED558CCDL;
+            h = Long.rotateLeft(h, 31);
+        }
+        // MurmurHash3 finalizer.
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs calls to one backend operation with an {@link AdaptiveTimeout} and, optionally,
+ * hedging: if the first request hasn't answered after the recent p95 latency a second
+ * identical request is sent and whichever succeeds first wins.
+ *
+ * Hedging doubles the load of slow calls, so it is capped: every call earns
+ * {@code maxHedgeRatio} of a hedge (up to a small burst) and every hedge spends a whole
+ * one. With a ratio of 0.1 hedges can never add more than about 10% extra requests.
+ * Only use hedging for idempotent operations.
+ *
+ * {@link #execute(Attempt)} blocks and must not be called from the main thread.
+ */
+public class HedgedRequests {
+
+    private static final long HEDGE_UNIT = 1000;
+    private static final long MAX_HEDGE_CREDIT = 10 * HEDGE_UNIT;
+
+    /**
+     * Starts one request to the backend and reports back through the callback.
+     */
+    public interface Attempt<T> {
+        void start(Callback<T> callback);
+    }
+
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        void onFailure(Exception e);
+    }
+
+    private final String mName;
+    private final AdaptiveTimeout mTimeout;
+    private final boolean mHedging;
+    private final long mCreditPerCall;
+
+    private final String mHedgedMetric;
+    private final String mHedgeWonMetric;
+    private final String mTimeoutMetric;
+
+    private final AtomicLong mHedgeCredit = new AtomicLong();
+
+    /**
+     * @param name metric prefix, e.g. "backend.sign_in"
+     * @param hedging whether this operation is safe to send twice
+     * @param maxHedgeRatio upper bound of extra requests caused by hedging, e.g. 0.1
+     */
+    public HedgedRequests(String name, AdaptiveTimeout timeout, boolean hedging,
+                          double maxHedgeRatio) {
+        mName = name;
+        mTimeout = timeout;
+        mHedging = hedging;
+        mCreditPerCall = (long) (maxHedgeRatio * HEDGE_UNIT);
+
+        mHedgedMetric = name + ".hedged";
+        mHedgeWonMetric = name + ".hedge_won";
+        mTimeoutMetric = name + ".timeout";
+    }
+
+    /**
+     * Runs {@code attempt}, hedging it if allowed, and returns the first successful
+     * result.
+     *
+     * @throws TimeoutException if nothing answered within the adaptive timeout
+     * @throws Exception the failure of the last attempt if every attempt failed
+     */
+    public <T> T execute(Attempt<T> attempt) throws Exception {
+        final long timeout = mTimeout.timeoutNanos();
+        final long hedgeDelay = mHedging ? mTimeout.hedgeDelayNanos() : -1;
+        earnHedgeCredit();
+
+        final Race<T> race = new Race<>();
+        final long start = System.nanoTime();
+        race.launch(attempt, false);
+
+        // Don't hedge an attempt that already failed, its failure is the answer.
+        if (hedgeDelay >= 0 && hedgeDelay < timeout && !race.awaitAnswer(hedgeDelay)
+                && spendHedgeCredit()) {
+            AuthMetrics.getInstance().increment(mHedgedMetric);
+            race.launch(attempt, true);
+        }
+        race.closeLaunches();
+
+        if (!race.await(timeout - (System.nanoTime() - start))) {
+            // We only know they took at least this long, but leaving them out would let
+            // the timeout keep shrinking while the backend is struggling.
+            race.recordUnanswered();
+            AuthMetrics.getInstance().increment(mTimeoutMetric);
+            throw new TimeoutException(mName + " timed out after "
+                    + TimeUnit.NANOSECONDS.toMillis(timeout) + "ms");
+        }
+        return race.result();
+    }
+
+    private void earnHedgeCredit() {
+        while (true) {
+            final long credit = mHedgeCredit.get();
+            final long earned = Math.min(MAX_HEDGE_CREDIT, credit + mCreditPerCall);
+            if (earned == credit || mHedgeCredit.compareAndSet(credit, earned)) {
+                return;
+            }
+        }
+    }
+
+    private boolean spendHedgeCredit() {
+        while (true) {
+            final long credit = mHedgeCredit.get();
+            if (credit < HEDGE_UNIT) {
+                return false;
+            }
+            if (mHedgeCredit.compareAndSet(credit, credit - HEDGE_UNIT)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * One request of a race. Its latency is recorded exactly once, either when it
+     * answers or when the race times out, whichever comes first.
+     */
+    private class Sample {
+
+        private final long mStart = System.nanoTime();
+        private final AtomicBoolean mRecorded = new AtomicBoolean();
+
+        void record() {
+            if (mRecorded.compareAndSet(false, true)) {
+                mTimeout.record(System.nanoTime() - mStart);
+            }
+        }
+    }
+
+    private class Race<T> {
+
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private final CountDownLatch mAnswered = new CountDownLatch(1);
+        // Starts at one for launches still to come, see closeLaunches().
+        private final AtomicInteger mPending = new AtomicInteger(1);
+        private final List<Sample> mSamples = new ArrayList<>(2);
+        private volatile T mResult;
+        private volatile boolean mWon;
+        private volatile Exception mFailure;
+
+        void launch(Attempt<T> attempt, final boolean hedge) {
+            mPending.incrementAndGet();
+            final Sample sample = new Sample();
+            synchronized (mSamples) {
+                mSamples.add(sample);
+            }
+            attempt.start(new Callback<T>() {
+                @Override
+                public void onSuccess(T result) {
+                    // Losers still tell us how slow the backend is.
+                    sample.record();
+                    mAnswered.countDown();
+                    synchronized (Race.this) {
+                        if (mWon) {
+                            return;
+                        }
+                        mResult = result;
+                        mWon = true;
+                    }
+                    if (hedge) {
+                        AuthMetrics.getInstance().increment(mHedgeWonMetric);
+                    }
+                    mDone.countDown();
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    mFailure = e;
+                    mAnswered.countDown();
+                    attemptFinished();
+                }
+            });
+        }
+
+        /**
+         * Called once no more attempts will be launched. Until then a failure can't
+         * end the race, a hedge may still be on its way.
+         */
+        void closeLaunches() {
+            attemptFinished();
+        }
+
+        private void attemptFinished() {
+            if (mPending.decrementAndGet() == 0) {
+                mDone.countDown();
+            }
+        }
+
+        /**
+         * Waits for any attempt to answer, successfully or not.
+         */
+        boolean awaitAnswer(long nanos) throws InterruptedException {
+            return mAnswered.await(Math.max(0, nanos), TimeUnit.NANOSECONDS);
+        }
+
+        boolean await(long nanos) throws InterruptedException {
+            return mDone.await(Math.max(0, nanos), TimeUnit.NANOSECONDS);
+        }
+
+        void recordUnanswered() {
+            synchronized (mSamples) {
+                for (Sample sample : mSamples) {
+                    sample.record();
+                }
+            }
+        }
+
+        T result() throws Exception {
+            if (mWon) {
+                return mResult;
+            }
+            throw mFailure;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token bucket rate limiter with one bucket per key plus a global bucket shared by
+ * every key.
+ *
+ * Buckets are stored in the "theoretical arrival time" form (GCRA): each bucket is a
+ * single long holding the time at which it will be full again, so taking a token is
+ * one compare-and-set and no lock is ever held. Keys are hashed onto a fixed array of
+ * stripes, which keeps memory bounded no matter how many accounts a caller invents.
+ * Two keys landing on the same stripe share a budget, so the stripe count should be
+ * well above the number of accounts expected on a device.
+ */
+public class RateLimiter {
+
+    // Defaults used by AuthService and the Authenticator. Every request
+    // mints an RSA signed token and talks to the backend, so they are kept low.
+    private static final int DEFAULT_STRIPES = 64;
+    private static final double DEFAULT_PER_KEY_RATE = 1.0;
+    private static final int DEFAULT_PER_KEY_BURST = 5;
+    private static final double DEFAULT_GLOBAL_RATE = 5.0;
+    private static final int DEFAULT_GLOBAL_BURST = 20;
+
+    private static final RateLimiter sInstance = new RateLimiter(DEFAULT_STRIPES,
+            DEFAULT_PER_KEY_RATE, DEFAULT_PER_KEY_BURST,
+            DEFAULT_GLOBAL_RATE, DEFAULT_GLOBAL_BURST, Ticker.SYSTEM);
+
+    private final Ticker mTicker;
+    private final long mOrigin;
+
+    private final AtomicLongArray mStripes;
+    private final int mStripeMask;
+    private final long mKeyInterval;
+    private final long mKeyTolerance;
+
+    private final AtomicLong mGlobal = new AtomicLong();
+    private final long mGlobalInterval;
+    private final long mGlobalTolerance;
+
+    public static RateLimiter getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param stripes number of per key buckets, rounded up to a power of two
+     * @param perKeyRate sustained permits per second for a single key
+     * @param perKeyBurst permits a single idle key may take at once
+     * @param globalRate sustained permits per second across all keys
+     * @param globalBurst permits that may be taken at once across all keys
+     */
+    public RateLimiter(int stripes, double perKeyRate, int perKeyBurst,
+                       double globalRate, int globalBurst, Ticker ticker) {
+        if (stripes <= 0 || perKeyRate <= 0 || perKeyBurst <= 0
+                || globalRate <= 0 || globalBurst <= 0) {
+            throw new IllegalArgumentException("Rate limiter settings must be positive");
+        }
+
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+
+        mTicker = ticker;
+        mOrigin = ticker.read();
+
+        mStripes = new AtomicLongArray(size);
+        mStripeMask = size - 1;
+        mKeyInterval = intervalFor(perKeyRate);
+        mKeyTolerance = mKeyInterval * (perKeyBurst - 1);
+
+        mGlobalInterval = intervalFor(globalRate);
+        mGlobalTolerance = mGlobalInterval * (globalBurst - 1);
+    }
+
+    /**
+     * Takes a permit for the given key. The per key bucket is checked first so a
+     * single noisy account is rejected without eating into the global budget.
+     *
+     * @return true if the caller may proceed, false if it has been rate limited.
+     */
+    public boolean tryAcquire(String key) {
+        final long now = mTicker.read() - mOrigin;
+        final int stripe = stripeFor(key);
+
+        if (!tryTake(stripe, now)) {
+            return false;
+        }
+
+        if (!tryTakeGlobal(now)) {
+            // Hand the per key permit back, the request never went through.
+            refund(stripe);
+            return false;
+        }
+
+        return true;
+    }
+
+    private boolean tryTake(int stripe, long now) {
+        while (true) {
+            final long tat = mStripes.get(stripe);
+            final long start = Math.max(tat, now);
+            if (start - now > mKeyTolerance) {
+                return false;
+            }
+            if (mStripes.compareAndSet(stripe, tat, start + mKeyInterval)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean tryTakeGlobal(long now) {
+        while (true) {
+            final long tat = mGlobal.get();
+            final long start = Math.max(tat, now);
+            if (start - now > mGlobalTolerance) {
+                return false;
+            }
+            if (mGlobal.compareAndSet(tat, start + mGlobalInterval)) {
+                return true;
+            }
+        }
+    }
+
+    private void refund(int stripe) {
+        mStripes.addAndGet(stripe, -mKeyInterval);
+    }
+
+    private int stripeFor(String key) {
+        int h = key == null ? 0 : key.hashCode();
+        // Spread the bits so keys differing only in the high bits don't collide.
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h & mStripeMask;
+    }
+
+    private static long intervalFor(double permitsPerSecond) {
+        return Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+    }
+}
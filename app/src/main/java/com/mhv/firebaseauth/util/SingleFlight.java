@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2018 Milan Herrera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhv.firebaseauth.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Collapses concurrent calls for the same key into one. The first caller runs the
+ * loader, everyone arriving while it is still running waits for and shares its
+ * result (or exception). Once the call finishes the key is forgotten, so the next
+ * caller starts a fresh one.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, Call<V>> mCalls = new ConcurrentHashMap<>();
+
+    public V execute(K key, Callable<V> loader) throws Exception {
+        final Call<V> call = new Call<>();
+        final Call<V> existing = mCalls.putIfAbsent(key, call);
+        if (existing != null) {
+            return existing.await();
+        }
+
+        try {
+            call.mValue = loader.call();
+        } catch (Exception | Error e) {
+            call.mError = e;
+        } finally {
+            mCalls.remove(key, call);
+            call.mDone.countDown();
+        }
+        return call.await();
+    }
+
+    public boolean isInFlight(K key) {
+        return mCalls.containsKey(key);
+    }
+
+    private static class Call<V> {
+
+        final CountDownLatch mDone = new CountDownLatch(1);
+        V mValue;
+        Throwable mError;
+
+        V await() throws Exception {
+            mDone.await();
+            if (mError instanceof Exception) {
+                throw (Exception) mError;
+            } else if (mError instanceof Error) {
+                throw (Error) mError;
+            }
+            return mValue;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.mhv.firebaseauth;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for the Firebase backend used by the JVM tests.
+ *
+ * Every call sleeps for a base latency, and with probability {@code tailProbability}
+ * for {@code tailLatencyMillis} instead, which is enough to reproduce the long tail
+ * seen against the real backend.
+ */
+public class LocalBackend {
+
+    private final ConcurrentMap<String, String> mUsers = new ConcurrentHashMap<>();
+    private final AtomicInteger mCalls = new AtomicInteger();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mIdTokens = new AtomicInteger();
+    private final Random mRandom = new Random(42);
+
+    private volatile long mBaseLatencyMillis;
+    private volatile long mTailLatencyMillis;
+    private volatile double mTailProbability;
+    private volatile boolean mFailing;
+
+    public LocalBackend(long baseLatencyMillis) {
+        mBaseLatencyMillis = baseLatencyMillis;
+    }
+
+    public LocalBackend withTail(double probability, long latencyMillis) {
+        mTailProbability = probability;
+        mTailLatencyMillis = latencyMillis;
+        return this;
+    }
+
+    public void setFailing(boolean failing) {
+        mFailing = failing;
+    }
+
+    public int calls() {
+        return mCalls.get();
+    }
+
+    public int inFlight() {
+        return mInFlight.get();
+    }
+
+    public boolean createUser(String email, String password) throws Exception {
+        enter();
+        try {
+            return mUsers.putIfAbsent(email, password) == null;
+        } finally {
+            mInFlight.decrementAndGet();
+        }
+    }
+
+    public boolean signIn(String uid) throws Exception {
+        enter();
+        try {
+            return uid != null;
+        } finally {
+            mInFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Issues a fresh ID token for {@code uid}. Every token is unique so tests can tell
+     * how many were minted.
+     */
+    public String getIdToken(String uid) throws Exception {
+        enter();
+        try {
+            return "id-token-" + uid + "-" + mIdTokens.incrementAndGet();
+        } finally {
+            mInFlight.decrementAndGet();
+        }
+    }
+
+    public int idTokensIssued() {
+        return mIdTokens.get();
+    }
+
+    private void enter() throws Exception {
+        mCalls.incrementAndGet();
+        mInFlight.incrementAndGet();
+
+        final boolean tail;
+        synchronized (mRandom) {
+            tail = mRandom.nextDouble() < mTailProbability;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(tail ? mTailLatencyMillis : mBaseLatencyMillis);
+        } catch (InterruptedException e) {
+            mInFlight.decrementAndGet();
+            throw e;
+        }
+
+        if (mFailing) {
+            mInFlight.decrementAndGet();
+            throw new Exception("Backend unavailable");
+        }
+    }
+}
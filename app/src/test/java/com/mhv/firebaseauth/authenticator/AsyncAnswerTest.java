@@ -0,0 +1,114 @@
+package com.mhv.firebaseauth.authenticator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncAnswerTest {
+
+    private static class RecordingAnswer implements AsyncAnswer.Answer<String> {
+
+        final List<String> mResults = new ArrayList<>();
+        final List<Throwable> mFailures = new ArrayList<>();
+        final CountDownLatch mAnswered = new CountDownLatch(1);
+
+        @Override
+        public synchronized void onResult(String result) {
+            mResults.add(result);
+            mAnswered.countDown();
+        }
+
+        @Override
+        public synchronized void onFailure(Throwable t) {
+            mFailures.add(t);
+            mAnswered.countDown();
+        }
+    }
+
+    // What reached the worker thread's uncaught exception handler. The handler runs
+    // after the pool already counts the thread as gone, so wait for it explicitly.
+    private volatile Throwable mUncaught;
+    private final CountDownLatch mUncaughtSeen = new CountDownLatch(1);
+
+    private RecordingAnswer submit(Callable<String> work) throws Exception {
+        final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r);
+                thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                    @Override
+                    public void uncaughtException(Thread t, Throwable e) {
+                        mUncaught = e;
+                        mUncaughtSeen.countDown();
+                    }
+                });
+                return thread;
+            }
+        });
+        try {
+            final RecordingAnswer answer = new RecordingAnswer();
+            AsyncAnswer.submit(worker, work, answer);
+            assertTrue("never answered", answer.mAnswered.await(5, TimeUnit.SECONDS));
+            worker.shutdown();
+            assertTrue(worker.awaitTermination(5, TimeUnit.SECONDS));
+            return answer;
+        } finally {
+            worker.shutdownNow();
+        }
+    }
+
+    @Test
+    public void resultIsDelivered() throws Exception {
+        final RecordingAnswer answer = submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return "token";
+            }
+        });
+
+        assertEquals(1, answer.mResults.size());
+        assertEquals("token", answer.mResults.get(0));
+        assertTrue(answer.mFailures.isEmpty());
+    }
+
+    @Test
+    public void throwingWorkerIsStillAnswered() throws Exception {
+        final IllegalStateException thrown = new IllegalStateException("account manager gone");
+        final RecordingAnswer answer = submit(new Callable<String>() {
+            @Override
+            public String call() {
+                throw thrown;
+            }
+        });
+
+        assertTrue(answer.mResults.isEmpty());
+        assertEquals(1, answer.mFailures.size());
+        assertSame(thrown, answer.mFailures.get(0));
+    }
+
+    @Test
+    public void errorIsAnsweredAndRethrown() throws Exception {
+        final ExceptionInInitializerError thrown = new ExceptionInInitializerError("no class");
+        final RecordingAnswer answer = submit(new Callable<String>() {
+            @Override
+            public String call() {
+                throw thrown;
+            }
+        });
+
+        assertTrue(answer.mResults.isEmpty());
+        assertEquals(1, answer.mFailures.size());
+        assertSame(thrown, answer.mFailures.get(0));
+        assertTrue("not rethrown", mUncaughtSeen.await(5, TimeUnit.SECONDS));
+        assertSame(thrown, mUncaught);
+    }
+}
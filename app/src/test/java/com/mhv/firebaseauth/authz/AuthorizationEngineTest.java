@@ -0,0 +1,241 @@
+package com.mhv.firebaseauth.authz;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mhv.firebaseauth.profiling.AllocationProfiler;
+import com.mhv.firebaseauth.profiling.JvmAllocationCounter;
+import com.mhv.firebaseauth.util.Base64Url;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AuthorizationEngineTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CHECKS = 2000000;
+    // The compiled checks should beat parsing by far more than this.
+    private static final double MIN_SPEEDUP = 5;
+    // Fixed so the same claims always make the same token string.
+    private static final long EXPIRES_AT_MILLIS =
+            System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+
+    // Keeps the checks from being optimized away.
+    private static volatile boolean sSink;
+
+    private AuthorizationEngine mEngine;
+    private int mRead;
+    private int mWrite;
+    private int mDelete;
+
+    @Before
+    public void setUp() {
+        mEngine = new AuthorizationEngine();
+        mEngine.grant("editor", "notes.read", "notes.write");
+        mEngine.grant("admin", "notes.read", "notes.write", "notes.delete");
+        mRead = mEngine.permission("notes.read");
+        mWrite = mEngine.permission("notes.write");
+        mDelete = mEngine.permission("notes.delete");
+    }
+
+    @Test
+    public void rolesAndPermissionsAreCompiled() throws Exception {
+        final String token = token("alice", "[\"editor\"]", "[\"notes.delete\",\"unknown\"]");
+
+        assertTrue(mEngine.isAllowed(token, mRead));
+        assertTrue(mEngine.isAllowed(token, mWrite));
+        assertTrue(mEngine.isAllowed(token, mDelete));
+        assertEquals("alice", mEngine.compile(token).getUid());
+        assertEquals(1, mEngine.cacheSize());
+    }
+
+    @Test
+    public void tokenWithoutClaimsIsDeniedEverything() throws Exception {
+        final String token = token("bob", null, null);
+
+        assertFalse(mEngine.isAllowed(token, mRead));
+        assertFalse(mEngine.isAllowed("not-a-jwt", mRead));
+        assertFalse(mEngine.isAllowed(token("carol", "[\"editor\"]", "[]"), 1000));
+    }
+
+    @Test
+    public void nullTokenIsDeniedEverything() {
+        assertFalse(mEngine.isAllowed(null, mRead));
+        assertNull(mEngine.compile(null).getUid());
+        assertEquals(0, mEngine.cacheSize());
+    }
+
+    @Test
+    public void expiredTokenIsDeniedEvenWhenCached() throws Exception {
+        final long now = System.currentTimeMillis();
+        final String live = token("alice", "[\"editor\"]", "[]", now + TimeUnit.HOURS.toMillis(1));
+        final String expired = token("bob", "[\"editor\"]", "[]", now - 1000);
+        final String noExp = "e30." + encode("{\"user_id\":\"carol\",\"roles\":[\"admin\"]}")
+                + ".sig";
+
+        assertTrue(mEngine.isAllowed(live, mRead));
+        assertFalse(mEngine.isAllowed(expired, mRead));
+        assertFalse(mEngine.isAllowed(noExp, mRead));
+
+        // The expiry is kept with the cached claims and checked on every call.
+        final CompiledClaims claims = mEngine.compile(live);
+        assertEquals(TimeUnit.SECONDS.toMillis(TimeUnit.MILLISECONDS.toSeconds(now) + 3600),
+                claims.getExpiresAtMillis());
+        assertTrue(claims.isExpired(claims.getExpiresAtMillis()));
+        assertFalse(mEngine.isAllowed(expired, mRead));
+    }
+
+    @Test
+    public void policyChangesApplyToCachedTokens() throws Exception {
+        final String token = token("alice", "[\"viewer\"]", "[]");
+        assertFalse(mEngine.isAllowed(token, mRead));
+
+        mEngine.grant("viewer", "notes.read");
+        assertTrue(mEngine.isAllowed(token, mRead));
+        assertFalse(mEngine.isAllowed(token, mWrite));
+    }
+
+    @Test
+    public void idTokenStyleTopLevelClaimsAreRead() throws Exception {
+        final String payload = "{\"user_id\":\"alice\",\"roles\":[\"admin\"],\"exp\":"
+                + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() + 60000) + "}";
+        final String token = "e30." + encode(payload) + ".sig";
+
+        assertTrue(mEngine.isAllowed(token, mDelete));
+        assertEquals("alice", mEngine.compile(token).getUid());
+    }
+
+    @Test
+    public void uidFallsBackToSubject() throws Exception {
+        final String token = "e30." + encode("{\"sub\":\"alice\"}") + ".sig";
+
+        assertEquals("alice", mEngine.compile(token).getUid());
+    }
+
+    @Test
+    public void fullCacheEvictsOldestTokensOnly() throws Exception {
+        final int max = AuthorizationEngine.MAX_CACHED_TOKENS;
+        final CompiledClaims[] compiled = new CompiledClaims[max + 1];
+        for (int i = 0; i <= max; i++) {
+            compiled[i] = mEngine.compile(token("user-" + i, "[\"editor\"]", "[]"));
+        }
+        assertEquals(max, mEngine.cacheSize());
+
+        // Everything but the oldest token is still cached.
+        for (int i = max; i > 0; i--) {
+            assertSame(compiled[i], mEngine.compile(token("user-" + i, "[\"editor\"]", "[]")));
+        }
+        assertNotSame(compiled[0], mEngine.compile(token("user-0", "[\"editor\"]", "[]")));
+    }
+
+    @Test
+    public void checksPerSecondAgainstParsedJson() throws Exception {
+        final String token = token("alice", "[\"editor\"]", "[\"notes.delete\"]");
+        final ObjectMapper mapper = new ObjectMapper();
+        final int[] permissions = {mRead, mWrite, mDelete};
+        final String[] names = {"notes.read", "notes.write", "notes.delete"};
+
+        int allowed = 0;
+        // Warm up both paths.
+        for (int i = 0; i < CHECKS / 10; i++) {
+            if (mEngine.isAllowed(token, permissions[i % 3])) {
+                allowed++;
+            }
+            if (parsedJsonCheck(mapper, token, names[i % 3])) {
+                allowed++;
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < CHECKS; i++) {
+            if (mEngine.isAllowed(token, permissions[i % 3])) {
+                allowed++;
+            }
+        }
+        final double compiled = CHECKS * 1e9 / (System.nanoTime() - start);
+
+        final int baselineChecks = CHECKS / 20;
+        start = System.nanoTime();
+        for (int i = 0; i < baselineChecks; i++) {
+            if (parsedJsonCheck(mapper, token, names[i % 3])) {
+                allowed++;
+            }
+        }
+        final double parsed = baselineChecks * 1e9 / (System.nanoTime() - start);
+
+        assertTrue(allowed > 0);
+        assertTrue(String.format("compiled %.0f checks/s, parsed JSON %.0f checks/s",
+                compiled, parsed), compiled > MIN_SPEEDUP * parsed);
+    }
+
+    @Test
+    public void cachedChecksDoNotAllocate() throws Exception {
+        final AllocationProfiler profiler = new AllocationProfiler();
+        assertTrue("HotSpot supports thread allocation counters",
+                profiler.start(new JvmAllocationCounter()));
+        final String token = token("alice", "[\"editor\"]", "[\"notes.delete\"]");
+        final int[] permissions = {mRead, mWrite, mDelete};
+
+        AllocationProfiler.Scope scope = profiler.begin("first");
+        sSink = mEngine.isAllowed(token, mRead);
+        scope.end();
+        for (int i = 0; i < 10000; i++) {
+            scope = profiler.begin("cached");
+            sSink = mEngine.isAllowed(token, permissions[i % 3]);
+            scope.end();
+        }
+
+        assertTrue(profiler.stats("first").maxBytes() > 0);
+        // The JIT occasionally allocates a few KB on this thread once, anything the
+        // check itself allocated would be at least 16 bytes on every call.
+        final AllocationProfiler.OperationStats cached = profiler.stats("cached");
+        assertEquals("allocated " + cached.totalBytes() + " bytes in " + cached.count()
+                + " checks", 0, cached.meanBytes());
+    }
+
+    // What every check costs without the engine: decode, parse and walk the claims.
+    private boolean parsedJsonCheck(ObjectMapper mapper, String token, String permission)
+            throws Exception {
+        final JsonNode claims = mapper.readTree(Base64Url.decodeJwtPayload(token)).path("claims");
+        for (JsonNode granted : claims.path("permissions")) {
+            if (granted.asText().equals(permission)) {
+                return true;
+            }
+        }
+        for (JsonNode role : claims.path("roles")) {
+            final String name = role.asText();
+            if (name.equals("admin") || (name.equals("editor") && !permission.equals("notes.delete"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String token(String uid, String roles, String permissions) {
+        return token(uid, roles, permissions, EXPIRES_AT_MILLIS);
+    }
+
+    // Same layout as AuthUtils.generateFirebaseAuthToken, with a dummy signature.
+    private static String token(String uid, String roles, String permissions,
+            long expiresAtMillis) {
+        final long exp = TimeUnit.MILLISECONDS.toSeconds(expiresAtMillis);
+        final String payload = "{"
+                + "\"iss\":\"firebase-adminsdk@example.iam.gserviceaccount.com\",\n"
+                + "\"uid\":\"" + uid + "\",\n"
+                + "\"iat\":\"" + (exp - 3600) + "\",\n"
+                + "\"exp\":\"" + exp + "\"\n"
+                + (roles == null ? ""
+                        : ",\"claims\":{\"roles\":" + roles + ",\"permissions\":" + permissions + "}\n")
+                + "}";
+        return encode("{\"typ\":\"JWT\",\"alg\":\"RS256\"}") + "." + encode(payload) + ".c2ln";
+    }
+
+    private static String encode(String json) {
+        return java.util.Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(json.getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,179 @@
+package com.mhv.firebaseauth.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AuthInterceptorTest {
+
+    private static final int CONCURRENT_REQUESTS = 16;
+
+    private StubHttpServer mServer;
+    private URL mUrl;
+
+    // Stub server state: the token it accepts and how slow it is.
+    private volatile String mValidToken = "token-1";
+    private volatile long mLatencyMillis;
+    private final AtomicInteger mRequests = new AtomicInteger();
+
+    private final CountingSource mSource = new CountingSource();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new StubHttpServer(CONCURRENT_REQUESTS, new StubHttpServer.Handler() {
+            @Override
+            public int handle(String method, String path, Map<String, String> headers)
+                    throws Exception {
+                mRequests.incrementAndGet();
+                TimeUnit.MILLISECONDS.sleep(mLatencyMillis);
+                return ("Bearer " + mValidToken).equals(headers.get("authorization")) ? 200 : 401;
+            }
+        });
+        mUrl = mServer.url("/notes");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop();
+    }
+
+    @Test
+    public void tokenIsAttachedAndCachedBetweenRequests() throws Exception {
+        final AuthInterceptor interceptor = newInterceptor();
+
+        for (int i = 0; i < 5; i++) {
+            final HttpResponse response = interceptor.execute(HttpRequest.get(mUrl));
+            assertEquals(200, response.getCode());
+            assertEquals("ok", new String(response.getBody(), "UTF-8"));
+        }
+        assertEquals(1, mSource.fetches.get());
+        assertEquals("token-1", interceptor.peekToken());
+    }
+
+    @Test
+    public void expiryTriggersOneSharedRefresh() throws Exception {
+        final AuthInterceptor interceptor = newInterceptor();
+        assertEquals(200, interceptor.execute(HttpRequest.get(mUrl)).getCode());
+
+        // Token expires server side while a burst of slow requests is in flight.
+        mLatencyMillis = 50;
+        mValidToken = "token-2";
+
+        final List<Future<Integer>> results = runConcurrently(interceptor);
+        for (Future<Integer> result : results) {
+            assertEquals(200, (int) result.get());
+        }
+
+        assertEquals(2, mSource.fetches.get());
+        assertEquals(1, mSource.invalidations.get());
+        assertEquals("token-2", interceptor.peekToken());
+    }
+
+    @Test
+    public void requestDuringRefreshWaitsForTheNewToken() throws Exception {
+        final AuthInterceptor interceptor = newInterceptor();
+        assertEquals(200, interceptor.execute(HttpRequest.get(mUrl)).getCode());
+
+        mValidToken = "token-2";
+        mSource.fetchMillis = 300;
+        final ExecutorService clients = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Integer> rejected = clients.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return interceptor.execute(HttpRequest.get(mUrl)).getCode();
+                }
+            });
+            // Wait until the refresh is fetching, then start a fresh request.
+            while (mSource.fetches.get() < 2) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+
+            assertEquals(200, interceptor.execute(HttpRequest.get(mUrl)).getCode());
+            assertEquals(200, (int) rejected.get(30, TimeUnit.SECONDS));
+        } finally {
+            clients.shutdownNow();
+        }
+
+        // No second fetch running alongside the refresh, and the new request never
+        // went out with the stale token: first call, 401, retry and the new request.
+        assertEquals(2, mSource.fetches.get());
+        assertEquals(4, mRequests.get());
+        assertEquals("token-2", interceptor.peekToken());
+    }
+
+    @Test
+    public void persistentRejectionIsRetriedOnlyOnce() throws Exception {
+        final AuthInterceptor interceptor = newInterceptor();
+        // The server rejects everything the source hands out.
+        mSource.issued = "rejected";
+
+        final HttpResponse response = interceptor.execute(HttpRequest.get(mUrl));
+
+        assertEquals(401, response.getCode());
+        assertEquals(2, mRequests.get());
+    }
+
+    private AuthInterceptor newInterceptor() {
+        return new AuthInterceptor(new UrlConnectionTransport(5000, 5000), mSource);
+    }
+
+    private List<Future<Integer>> runConcurrently(final AuthInterceptor interceptor)
+            throws Exception {
+        final ExecutorService clients = Executors.newFixedThreadPool(CONCURRENT_REQUESTS);
+        try {
+            final List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+                results.add(clients.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return interceptor.execute(HttpRequest.get(mUrl)).getCode();
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+            return results;
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    /**
+     * Stands in for the Authenticator: issues whatever token the server currently
+     * accepts (unless told otherwise), slowly, and counts how often it was asked.
+     */
+    private class CountingSource implements AuthInterceptor.TokenSource {
+
+        final AtomicInteger fetches = new AtomicInteger();
+        final AtomicInteger invalidations = new AtomicInteger();
+        volatile String issued;
+        volatile long fetchMillis = 20;
+
+        @Override
+        public String getToken() throws Exception {
+            final int fetch = fetches.incrementAndGet();
+            TimeUnit.MILLISECONDS.sleep(fetchMillis);
+            return issued != null ? issued + "-" + fetch : mValidToken;
+        }
+
+        @Override
+        public void invalidateToken(String token) {
+            invalidations.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.mhv.firebaseauth.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Bare bones HTTP/1.1 server on a local port for tests. It reads the request line and
+ * headers (bodies are ignored), asks the {@link Handler} for a response and closes the
+ * connection.
+ */
+public class StubHttpServer {
+
+    public interface Handler {
+        /**
+         * @return the status code, the body is the status text
+         */
+        int handle(String method, String path, Map<String, String> headers) throws Exception;
+    }
+
+    private final ServerSocket mSocket;
+    private final ExecutorService mThreads;
+    private final Handler mHandler;
+
+    public StubHttpServer(int threads, Handler handler) throws IOException {
+        mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mThreads = Executors.newFixedThreadPool(threads + 1);
+        mHandler = handler;
+        mThreads.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+    }
+
+    public URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + mSocket.getLocalPort() + path);
+    }
+
+    public void stop() throws IOException {
+        mSocket.close();
+        mThreads.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!mSocket.isClosed()) {
+            try {
+                final Socket client = mSocket.accept();
+                mThreads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                });
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try {
+            final BufferedReader in = new BufferedReader(
+                    new InputStreamReader(client.getInputStream(), "ISO-8859-1"));
+            final String[] requestLine = in.readLine().split(" ");
+            final Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                final int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+
+            final int code = mHandler.handle(requestLine[0], requestLine[1], headers);
+            final byte[] body = (code == 200 ? "ok" : "status " + code).getBytes("UTF-8");
+            final OutputStream out = client.getOutputStream();
+            out.write(("HTTP/1.1 " + code + " Stub\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+            out.write(body);
+            out.flush();
+        } catch (Exception e) {
+            // The test will notice the failed request.
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.mhv.firebaseauth.profiling;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mhv.firebaseauth.authz.AuthorizationEngine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AllocationProfilerTest {
+
+    private static final String OPERATION = "test.operation";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Keeps allocations from being optimized away.
+    private static volatile Object sSink;
+
+    private AllocationProfiler mProfiler;
+
+    @Before
+    public void setUp() {
+        mProfiler = new AllocationProfiler();
+    }
+
+    private void startProfiling() {
+        assertTrue("HotSpot supports thread allocation counters",
+                mProfiler.start(new JvmAllocationCounter()));
+    }
+
+    private void allocate(String operation, int bytes) {
+        final AllocationProfiler.Scope scope = mProfiler.begin(operation);
+        sSink = new byte[bytes];
+        scope.end();
+    }
+
+    @Test
+    public void nothingIsRecordedWhileDisabled() {
+        assertFalse(mProfiler.isEnabled());
+        assertSame(mProfiler.begin(OPERATION), mProfiler.begin("other"));
+        allocate(OPERATION, 1000);
+        assertTrue(mProfiler.operations().isEmpty());
+    }
+
+    @Test
+    public void allocationsAreChargedToTheirOperation() {
+        startProfiling();
+        for (int i = 0; i < 10; i++) {
+            allocate(OPERATION, 100000);
+            allocate("empty", 0);
+        }
+
+        final AllocationProfiler.OperationStats stats = mProfiler.stats(OPERATION);
+        assertEquals(10, stats.count());
+        assertTrue("mean " + stats.meanBytes(),
+                stats.meanBytes() >= 100000 && stats.meanBytes() < 101000);
+        assertTrue(stats.maxBytes() >= 100000);
+        // The JVM counter only knows about bytes.
+        assertTrue(stats.totalObjects() < 0);
+
+        // What the profiler allocates by itself is calibrated away.
+        assertTrue("mean " + mProfiler.stats("empty").meanBytes(),
+                mProfiler.stats("empty").meanBytes() < 100);
+    }
+
+    @Test
+    public void operationsOverBudgetAreFlagged() {
+        startProfiling();
+        mProfiler.setBudget(OPERATION, 50000);
+        final List<String> flagged = new ArrayList<>();
+        mProfiler.setListener(new AllocationProfiler.OverBudgetListener() {
+            @Override
+            public void onOverBudget(String operation, long bytes, long budgetBytes) {
+                flagged.add(operation);
+                assertTrue(bytes > budgetBytes);
+            }
+        });
+
+        allocate(OPERATION, 1000);
+        allocate(OPERATION, 100000);
+        allocate("unbudgeted", 100000);
+
+        assertEquals(1, mProfiler.stats(OPERATION).overBudget());
+        assertEquals(1, flagged.size());
+        assertEquals(OPERATION, flagged.get(0));
+    }
+
+    @Test
+    public void exportIncludesOperationsCachesAndFlags() throws Exception {
+        startProfiling();
+        mProfiler.setBudget(OPERATION, 50000);
+        allocate(OPERATION, 100000);
+        mProfiler.registerCache("test.cache", new AllocationProfiler.Cache() {
+            @Override
+            public AllocationProfiler.CacheSize measure() {
+                return new AllocationProfiler.CacheSize(3, 300);
+            }
+        });
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mProfiler.export(out, "1.0-1");
+        final JsonNode report = new ObjectMapper().readTree(out.toByteArray());
+
+        assertEquals(1, report.path("version").asInt());
+        assertEquals("1.0-1", report.path("label").asText());
+        assertEquals("jvm", report.path("counter").asText());
+
+        final JsonNode operation = report.path("operations").path(OPERATION);
+        assertEquals(1, operation.path("count").asLong());
+        assertTrue(operation.path("maxBytes").asLong() >= 100000);
+        assertEquals(50000, operation.path("budgetBytes").asLong());
+        assertEquals(1, operation.path("overBudget").asLong());
+        assertTrue(operation.path("totalObjects").isMissingNode());
+
+        assertEquals(3, report.path("caches").path("test.cache").path("entries").asLong());
+        assertEquals(300, report.path("caches").path("test.cache").path("bytes").asLong());
+
+        assertEquals(1, report.path("overBudget").size());
+        assertEquals(OPERATION, report.path("overBudget").get(0).path("operation").asText());
+    }
+
+    @Test
+    public void profileAuthorizationChecks() {
+        startProfiling();
+        final AuthorizationEngine engine = new AuthorizationEngine();
+        final int read = engine.permission("notes.read");
+        engine.grant("reader", "notes.read");
+        final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        final String token = encoder.encodeToString("{\"alg\":\"RS256\"}".getBytes(UTF_8))
+                + "." + encoder.encodeToString(
+                ("{\"uid\":\"milan\",\"exp\":" + (System.currentTimeMillis() / 1000 + 3600)
+                        + ",\"claims\":{\"roles\":[\"reader\"]}}").getBytes(UTF_8))
+                + ".signature";
+
+        for (int i = 0; i < 1000; i++) {
+            final AllocationProfiler.Scope scope = mProfiler.begin("authz.is_allowed");
+            sSink = engine.isAllowed(token, read);
+            scope.end();
+        }
+
+        final AllocationProfiler.OperationStats stats = mProfiler.stats("authz.is_allowed");
+        // Only the first check parses the token, the rest are cache hits.
+        assertTrue(engine.isAllowed(token, read));
+        assertTrue(stats.maxBytes() > 1000);
+        assertTrue("mean " + stats.meanBytes(), stats.meanBytes() < stats.maxBytes() / 10);
+    }
+}
@@ -0,0 +1,47 @@
+package com.mhv.firebaseauth.profiling;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads allocated bytes from HotSpot's ThreadMXBean, for profiling the plain Java parts
+ * of the auth code in JVM tests. Objects aren't counted. Calls the bean directly, so
+ * reading the counter doesn't allocate and only the measured code shows up.
+ */
+public class JvmAllocationCounter implements AllocationProfiler.Counter {
+
+    private com.sun.management.ThreadMXBean mBean;
+
+    @Override
+    public String name() {
+        return "jvm";
+    }
+
+    @Override
+    public boolean start() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return false;
+        }
+        final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported()) {
+            return false;
+        }
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+        mBean = sunBean;
+        return true;
+    }
+
+    @Override
+    public long threadBytes() {
+        if (mBean == null) {
+            throw new IllegalStateException("Allocation counter not started");
+        }
+        return mBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Override
+    public long threadObjects() {
+        return -1;
+    }
+}
@@ -0,0 +1,163 @@
+package com.mhv.firebaseauth.registration;
+
+import com.mhv.firebaseauth.Constants;
+import com.mhv.firebaseauth.LocalBackend;
+import com.mhv.firebaseauth.authenticator.AuthTokenMinter;
+import com.mhv.firebaseauth.util.AuthMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RegistrationPipelineTest {
+
+    private static final long BACKEND_MILLIS = 150;
+    private static final long MINT_MILLIS = 150;
+
+    private final LocalBackend mBackend = new LocalBackend(BACKEND_MILLIS);
+    private final AtomicInteger mMints = new AtomicInteger();
+    private final AtomicInteger mFailingMints = new AtomicInteger();
+
+    private ExecutorService mExecutor;
+    private RegistrationPipeline mPipeline;
+
+    private static class EmailTakenException extends Exception {
+    }
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadExecutor();
+        mPipeline = new RegistrationPipeline(new RegistrationPipeline.Backend() {
+            @Override
+            public void createUser(String email, String password) throws Exception {
+                if (!mBackend.createUser(email, password)) {
+                    throw new EmailTakenException();
+                }
+            }
+
+            @Override
+            public boolean isEmailTaken(Exception e) {
+                return e instanceof EmailTakenException;
+            }
+        }, new AuthTokenMinter.Mint() {
+            @Override
+            public String mint(String userName) throws Exception {
+                TimeUnit.MILLISECONDS.sleep(MINT_MILLIS);
+                if (mFailingMints.getAndDecrement() > 0) {
+                    throw new IllegalStateException("mint failed");
+                }
+                return "token-" + userName + "-" + mMints.incrementAndGet();
+            }
+        }, new KnownEmails(), mExecutor);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    private static long counter(String name) {
+        return AuthMetrics.getInstance().get(name);
+    }
+
+    @Test
+    public void mintOverlapsTheBackendCall() {
+        final long committed = counter(AuthMetrics.REGISTER_PREMINT_COMMITTED);
+
+        final long start = System.nanoTime();
+        final RegistrationPipeline.Result result =
+                mPipeline.register("milan", "milan@example.com", "secret-password");
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(result.isSuccessful());
+        assertEquals("token-milan-1", result.getAuthToken());
+        assertEquals(1, mBackend.calls());
+        assertEquals(committed + 1, counter(AuthMetrics.REGISTER_PREMINT_COMMITTED));
+        // Run one after the other they would take BACKEND_MILLIS + MINT_MILLIS.
+        assertTrue("took " + elapsedMillis + "ms",
+                elapsedMillis < BACKEND_MILLIS + MINT_MILLIS - 50);
+    }
+
+    @Test
+    public void invalidInputNeverReachesTheBackendOrTheMint() {
+        final long discarded = counter(AuthMetrics.REGISTER_PREMINT_DISCARDED);
+
+        assertFailure(Constants.ERROR_CODE_INVALID_INPUT,
+                mPipeline.register("", "milan@example.com", "secret-password"));
+        assertFailure(Constants.ERROR_CODE_INVALID_INPUT,
+                mPipeline.register("milan", "not-an-email", "secret-password"));
+        assertFailure(Constants.ERROR_CODE_INVALID_INPUT,
+                mPipeline.register("milan", "milan@example.com", "12345"));
+
+        assertEquals(0, mBackend.calls());
+        // Rejected before a mint was started, so there was nothing to discard.
+        assertEquals(discarded, counter(AuthMetrics.REGISTER_PREMINT_DISCARDED));
+        assertEquals(0, mMints.get());
+    }
+
+    @Test
+    public void knownEmailsAreTurnedDownLocally() {
+        mPipeline.getKnownEmails().add("Milan@Example.com ");
+
+        assertFailure(Constants.ERROR_CODE_EMAIL_TAKEN,
+                mPipeline.register("milan", "milan@example.com", "secret-password"));
+        assertEquals(0, mBackend.calls());
+    }
+
+    @Test
+    public void emailTakenOnTheBackendIsRemembered() throws Exception {
+        mBackend.createUser("milan@example.com", "other-password");
+        final int calls = mBackend.calls();
+
+        assertFailure(Constants.ERROR_CODE_EMAIL_TAKEN,
+                mPipeline.register("milan", "milan@example.com", "secret-password"));
+        assertEquals(calls + 1, mBackend.calls());
+
+        // The second attempt doesn't go back to the backend.
+        assertFailure(Constants.ERROR_CODE_EMAIL_TAKEN,
+                mPipeline.register("milan", "milan@example.com", "secret-password"));
+        assertEquals(calls + 1, mBackend.calls());
+
+        // Neither does registering an email we just created.
+        assertTrue(mPipeline.register("ana", "ana@example.com", "secret-password")
+                .isSuccessful());
+        assertTrue(mPipeline.getKnownEmails().contains("ana@example.com"));
+    }
+
+    @Test
+    public void backendFailureDiscardsTheToken() {
+        final long discarded = counter(AuthMetrics.REGISTER_PREMINT_DISCARDED);
+        mBackend.setFailing(true);
+
+        assertFailure(Constants.ERROR_CODE_REGISTRATION_FAILED,
+                mPipeline.register("milan", "milan@example.com", "secret-password"));
+        assertEquals(discarded + 1, counter(AuthMetrics.REGISTER_PREMINT_DISCARDED));
+        assertFalse(mPipeline.getKnownEmails().contains("milan@example.com"));
+    }
+
+    @Test
+    public void failedPreMintIsRetriedOnceTheUserExists() {
+        final long retried = counter(AuthMetrics.REGISTER_PREMINT_RETRIED);
+        mFailingMints.set(1);
+
+        final RegistrationPipeline.Result result =
+                mPipeline.register("milan", "milan@example.com", "secret-password");
+        assertTrue(result.isSuccessful());
+        assertEquals("token-milan-1", result.getAuthToken());
+        assertEquals(retried + 1, counter(AuthMetrics.REGISTER_PREMINT_RETRIED));
+    }
+
+    private static void assertFailure(int errorCode, RegistrationPipeline.Result result) {
+        assertFalse(result.isSuccessful());
+        assertNull(result.getAuthToken());
+        assertEquals(errorCode, result.getErrorCode());
+        assertNotNull(result.getErrorMessage());
+    }
+}
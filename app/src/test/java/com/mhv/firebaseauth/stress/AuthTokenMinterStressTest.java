@@ -0,0 +1,114 @@
+package com.mhv.firebaseauth.stress;
+
+import com.mhv.firebaseauth.authenticator.AuthTokenMinter;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Races getAuthToken style lookups (peek the cache, mint on a miss) and invalidations
+ * against {@link AuthTokenMinter}.
+ */
+public class AuthTokenMinterStressTest {
+
+    private static final int ACTORS = 4;
+    private static final String ACCOUNT = "alice@example.com";
+
+    static class State implements AuthTokenMinter.Store, AuthTokenMinter.Mint {
+
+        final ConcurrentMap<String, String> cache = new ConcurrentHashMap<>();
+        final AtomicInteger mints = new AtomicInteger();
+        final AtomicReferenceArray<String> results = new AtomicReferenceArray<>(ACTORS);
+        final AuthTokenMinter minter = new AuthTokenMinter(this, this);
+
+        @Override
+        public String peek(String accountName) {
+            return cache.get(accountName);
+        }
+
+        @Override
+        public void put(String accountName, String authToken) {
+            cache.put(accountName, authToken);
+        }
+
+        @Override
+        public String mint(String accountName) {
+            // Widen the window in which other callers can miss the cache.
+            Thread.yield();
+            return "token-" + mints.incrementAndGet();
+        }
+
+        // What Authenticator.getAuthToken does.
+        String getAuthToken() throws Exception {
+            final String cached = cache.get(ACCOUNT);
+            return cached != null ? cached : minter.getOrMint(ACCOUNT);
+        }
+    }
+
+    @Test
+    public void concurrentMissesMintOnce() throws Exception {
+        Stress.run(new Stress.Scenario<State>() {
+            @Override
+            public State newState() {
+                return new State();
+            }
+
+            @Override
+            public void actor(State state, int actor) throws Exception {
+                state.results.set(actor, state.getAuthToken());
+            }
+
+            @Override
+            public String arbiter(State state) {
+                for (int i = 1; i < ACTORS; i++) {
+                    if (!state.results.get(0).equals(state.results.get(i))) {
+                        return "divergent";
+                    }
+                }
+                return "mints=" + state.mints.get();
+            }
+
+            @Override
+            public boolean isForbidden(String outcome) {
+                return !outcome.equals("mints=1");
+            }
+        }, ACTORS);
+    }
+
+    @Test
+    public void invalidatedTokenIsNeverReturnedToTheInvalidator() throws Exception {
+        Stress.run(new Stress.Scenario<State>() {
+            @Override
+            public State newState() {
+                final State state = new State();
+                state.cache.put(ACCOUNT, "token-0");
+                return state;
+            }
+
+            @Override
+            public void actor(State state, int actor) throws Exception {
+                if (actor == 0) {
+                    state.cache.remove(ACCOUNT, "token-0");
+                }
+                state.results.set(actor, state.getAuthToken());
+            }
+
+            @Override
+            public String arbiter(State state) {
+                if ("token-0".equals(state.results.get(0))) {
+                    return "stale";
+                }
+                return "mints=" + state.mints.get();
+            }
+
+            @Override
+            public boolean isForbidden(String outcome) {
+                return !outcome.equals("mints=1");
+            }
+        }, ACTORS);
+    }
+}
@@ -0,0 +1,311 @@
+package com.mhv.firebaseauth.stress;
+
+import com.mhv.firebaseauth.token.IdTokenProvider;
+import com.mhv.firebaseauth.util.FakeTicker;
+
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Races refreshes, invalidations and user switches (login) against
+ * {@link IdTokenProvider}, looking for duplicate fetches and stale reads.
+ */
+public class IdTokenProviderStressTest {
+
+    private static final int ACTORS = 4;
+
+    private static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    static class CountingSource implements IdTokenProvider.Source {
+
+        final String uid;
+        final AtomicInteger fetches = new AtomicInteger();
+
+        CountingSource(String uid) {
+            this.uid = uid;
+        }
+
+        @Override
+        public IdTokenProvider.IdToken fetch(boolean forceRefresh) {
+            Thread.yield();
+            return new IdTokenProvider.IdToken(uid + "-" + fetches.incrementAndGet(),
+                    TimeUnit.HOURS.toMillis(1));
+        }
+
+        @Override
+        public String accountName() {
+            return uid;
+        }
+    }
+
+    // Background refreshes run here, shared by every round to keep rounds cheap.
+    private static final ExecutorService REFRESHER = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "stress-refresher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static class State {
+        final FakeTicker ticker = new FakeTicker();
+        final IdTokenProvider provider;
+        final CountingSource alice = new CountingSource("alice");
+        final CountingSource bob = new CountingSource("bob");
+        final AtomicReferenceArray<String> results = new AtomicReferenceArray<>(ACTORS);
+        volatile String initial;
+
+        State() {
+            this(INLINE);
+        }
+
+        State(Executor refresher) {
+            provider = new IdTokenProvider(refresher,
+                    IdTokenProvider.DEFAULT_REFRESH_WINDOW_MILLIS, ticker);
+        }
+
+        State warm() throws Exception {
+            provider.setSource(alice);
+            initial = provider.getToken();
+            return this;
+        }
+
+        /**
+         * Moves the clock into the refresh window of the cached token: it is still
+         * valid, but the next read starts a background refresh.
+         */
+        State intoRefreshWindow() {
+            ticker.advance(TimeUnit.HOURS.toNanos(1)
+                    - TimeUnit.MILLISECONDS.toNanos(IdTokenProvider.DEFAULT_REFRESH_WINDOW_MILLIS)
+                    + TimeUnit.SECONDS.toNanos(1));
+            return this;
+        }
+
+        /**
+         * Signs {@code user} in the way AuthService does: the backend sign-in
+         * completes on this thread, then the provider switches to the new user and
+         * the first token is read.
+         */
+        String login(CountingSource user) throws Exception {
+            Thread.yield();
+            provider.setSource(user);
+            return provider.getToken();
+        }
+
+        /**
+         * Waits for background refreshes queued so far to finish.
+         */
+        void drainRefreshes() throws Exception {
+            REFRESHER.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get(30, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void coldCallersShareOneFetch() throws Exception {
+        Stress.run(new Stress.Scenario<State>() {
+            @Override
+            public State newState() {
+                final State state = new State();
+                state.provider.setSource(state.alice);
+                return state;
+            }
+
+            @Override
+            public void actor(State state, int actor) throws Exception {
+                state.results.set(actor, state.provider.getToken());
+            }
+
+            @Override
+            public String arbiter(State state) {
+                for (int i = 1; i < ACTORS; i++) {
+                    if (!state.results.get(0).equals(state.results.get(i))) {
+                        return "divergent";
+                    }
+                }
+                return "fetches=" + state.alice.fetches.get();
+            }
+
+            @Override
+            public boolean isForbidden(String outcome) {
+                return !outcome.equals("fetches=1");
+            }
+        }, ACTORS);
+    }
+
+    @Test
+    public void invalidatedTokenIsNotReadBack() throws Exception {
+        Stress.run(new Stress.Scenario<State>() {
+            @Override
+            public State newState() throws Exception {
+                return new State().warm();
+            }
+
+            @Override
+            public void actor(State state, int actor) throws Exception {
+                if (actor == 0) {
+                    state.provider.invalidate(state.initial);
+                }
+                state.results.set(actor, state.provider.getToken());
+            }
+
+            @Override
+            public String arbiter(State state) {
+                if (state.initial.equals(state.results.get(0))) {
+                    return "stale";
+                }
+                return "fetches=" + state.alice.fetches.get();
+            }
+
+            @Override
+            public boolean isForbidden(String outcome) {
+                // One warm-up fetch plus exactly one shared refresh.
+                return !outcome.equals("fetches=2");
+            }
+        }, ACTORS);
+    }
+
+    @Test
+    public void loginNeverSeesThePreviousUsersToken() throws Exception {
+        Stress.run(new Stress.Scenario<State>() {
+            @Override
+            public State newState() throws Exception {
+                return new State().warm();
+            }
+
+            @Override
+            public void actor(State state, int actor) throws Exception {
+                state.results.set(actor, actor == 0
+                        ? state.login(state.bob) : state.provider.getToken());
+            }
+
+            @Override
+            public String arbiter(State state) {
+                if (!state.results.get(0).startsWith("bob-")) {
+                    return "stale: " + state.results.get(0);
+                }
+                final String cached = state.provider.peekToken();
+                if (cached != null && !cached.startsWith("bob-")) {
+                    return "stale cache: " + cached;
+                }
+                return "ok";
+            }
+
+            @Override
+            public boolean isForbidden(String outcome) {
+                return !outcome.equals("ok");
+            }
+        }, ACTORS);
+    }
+
+    @Test
+    public void backgroundRefreshRacesInvalidateAndLogin() throws Exception {
+        Stress.run(new Stress.Scenario<State>() {
+            @Override
+            public State newState() throws Exception {
+                return new State(REFRESHER).warm().intoRefreshWindow();
+            }
+
+            @Override
+            public void actor(State state, int actor) throws Exception {
+                switch (actor) {
+                    case 0:
+                        state.provider.invalidate(state.initial);
+                        state.results.set(actor, state.provider.getToken());
+                        break;
+                    case 1:
+                        state.results.set(actor, state.login(state.bob));
+                        break;
+                    default:
+                        // Both see the token in its refresh window and kick off the
+                        // background refresh.
+                        state.results.set(actor, state.provider.getToken());
+                        break;
+                }
+            }
+
+            @Override
+            public String arbiter(State state) throws Exception {
+                state.drainRefreshes();
+
+                if (state.initial.equals(state.results.get(0))) {
+                    return "invalidated token read back";
+                }
+                if (!state.results.get(1).startsWith("bob-")) {
+                    return "login saw: " + state.results.get(1);
+                }
+                for (int i = 0; i < ACTORS; i++) {
+                    if (state.results.get(i) == null) {
+                        return "no token for actor " + i;
+                    }
+                }
+
+                // A refresh of alice that lost the race to the login must not land.
+                final String cached = state.provider.peekToken();
+                if (cached != null && !cached.startsWith("bob-")) {
+                    return "stale cache: " + cached;
+                }
+                if (state.bob.fetches.get() != 1) {
+                    return "bob fetches=" + state.bob.fetches;
+                }
+                return "ok";
+            }
+
+            @Override
+            public boolean isForbidden(String outcome) {
+                return !outcome.equals("ok");
+            }
+        }, ACTORS);
+    }
+
+    @Test
+    public void signOutDuringRefreshLeavesNothingCached() throws Exception {
+        Stress.run(new Stress.Scenario<State>() {
+            @Override
+            public State newState() {
+                final State state = new State();
+                state.provider.setSource(state.alice);
+                return state;
+            }
+
+            @Override
+            public void actor(State state, int actor) throws Exception {
+                if (actor == 0) {
+                    state.provider.clear();
+                } else {
+                    state.provider.getToken();
+                }
+            }
+
+            @Override
+            public String arbiter(State state) throws Exception {
+                if (state.provider.peekToken() != null || state.provider.getToken() != null) {
+                    return "token after sign out";
+                }
+                return "ok";
+            }
+
+            @Override
+            public boolean isForbidden(String outcome) {
+                return !outcome.equals("ok");
+            }
+        }, ACTORS);
+    }
+}
@@ -0,0 +1,52 @@
+package com.mhv.firebaseauth.stress;
+
+import com.mhv.firebaseauth.util.AuthMetrics;
+import com.mhv.firebaseauth.util.LatencyHistogram;
+
+import org.junit.Test;
+
+/**
+ * Counters and histograms shared by every auth thread must not drop updates.
+ */
+public class MetricsStressTest {
+
+    private static final int ACTORS = 4;
+    private static final int UPDATES = 100;
+
+    static class State {
+        final AuthMetrics metrics = new AuthMetrics();
+        final LatencyHistogram histogram = new LatencyHistogram();
+    }
+
+    @Test
+    public void noLostUpdates() throws Exception {
+        Stress.run(new Stress.Scenario<State>() {
+            @Override
+            public State newState() {
+                return new State();
+            }
+
+            @Override
+            public void actor(State state, int actor) {
+                for (int i = 0; i < UPDATES; i++) {
+                    state.metrics.increment("stress.counter");
+                    state.histogram.record(i);
+                }
+            }
+
+            @Override
+            public String arbiter(State state) {
+                return "counter=" + state.metrics.get("stress.counter")
+                        + ", samples=" + state.histogram.count()
+                        + ", max=" + state.histogram.maxNanos();
+            }
+
+            @Override
+            public boolean isForbidden(String outcome) {
+                final int total = ACTORS * UPDATES;
+                return !outcome.equals("counter=" + total + ", samples=" + total
+                        + ", max=" + (UPDATES - 1));
+            }
+        }, ACTORS);
+    }
+}
@@ -0,0 +1,85 @@
+package com.mhv.firebaseauth.stress;
+
+import com.mhv.firebaseauth.util.FakeTicker;
+import com.mhv.firebaseauth.util.RateLimiter;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that contended {@link RateLimiter} buckets neither lose nor hand out extra
+ * permits. Time is frozen so the exact number of permits is known.
+ */
+public class RateLimiterStressTest {
+
+    private static final int ACTORS = 4;
+    private static final int TRIES = 4;
+
+    static class State {
+        final RateLimiter limiter;
+        final AtomicInteger granted = new AtomicInteger();
+
+        State(int perKeyBurst, int globalBurst) {
+            limiter = new RateLimiter(64, 1.0, perKeyBurst, 1.0, globalBurst, new FakeTicker());
+        }
+    }
+
+    @Test
+    public void sameAccountGetsExactlyItsBurst() throws Exception {
+        Stress.run(new Stress.Scenario<State>() {
+            @Override
+            public State newState() {
+                return new State(6, 100);
+            }
+
+            @Override
+            public void actor(State state, int actor) {
+                for (int i = 0; i < TRIES; i++) {
+                    if (state.limiter.tryAcquire("alice@example.com")) {
+                        state.granted.incrementAndGet();
+                    }
+                }
+            }
+
+            @Override
+            public String arbiter(State state) {
+                return "granted=" + state.granted.get();
+            }
+
+            @Override
+            public boolean isForbidden(String outcome) {
+                return !outcome.equals("granted=6");
+            }
+        }, ACTORS);
+    }
+
+    @Test
+    public void globalBudgetIsSharedExactly() throws Exception {
+        Stress.run(new Stress.Scenario<State>() {
+            @Override
+            public State newState() {
+                return new State(100, 6);
+            }
+
+            @Override
+            public void actor(State state, int actor) {
+                for (int i = 0; i < TRIES; i++) {
+                    if (state.limiter.tryAcquire("user" + actor + "@example.com")) {
+                        state.granted.incrementAndGet();
+                    }
+                }
+            }
+
+            @Override
+            public String arbiter(State state) {
+                return "granted=" + state.granted.get();
+            }
+
+            @Override
+            public boolean isForbidden(String outcome) {
+                return !outcome.equals("granted=6");
+            }
+        }, ACTORS);
+    }
+}
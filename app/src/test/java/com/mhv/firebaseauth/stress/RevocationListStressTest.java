@@ -0,0 +1,57 @@
+package com.mhv.firebaseauth.stress;
+
+import com.mhv.firebaseauth.token.RevocationList;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent revocations must all land, and a revocation must be visible to the
+ * revoking thread as soon as {@link RevocationList#revoke} returns.
+ */
+public class RevocationListStressTest {
+
+    private static final int ACTORS = 4;
+
+    static class State {
+        final RevocationList list = RevocationList.inMemory(64, 0.01);
+        final AtomicInteger missedOwn = new AtomicInteger();
+    }
+
+    @Test
+    public void revocationsAreNeverLost() throws Exception {
+        Stress.run(new Stress.Scenario<State>() {
+            @Override
+            public State newState() {
+                return new State();
+            }
+
+            @Override
+            public void actor(State state, int actor) throws Exception {
+                final String token = "token-" + actor;
+                state.list.revoke(token, Long.MAX_VALUE);
+                if (!state.list.isRevoked(token)) {
+                    state.missedOwn.incrementAndGet();
+                }
+            }
+
+            @Override
+            public String arbiter(State state) {
+                int revoked = 0;
+                for (int i = 0; i < ACTORS; i++) {
+                    if (state.list.isRevoked("token-" + i)) {
+                        revoked++;
+                    }
+                }
+                return "revoked=" + revoked + ", size=" + state.list.size()
+                        + ", missedOwn=" + state.missedOwn.get();
+            }
+
+            @Override
+            public boolean isForbidden(String outcome) {
+                return !outcome.equals("revoked=" + ACTORS + ", size=" + ACTORS + ", missedOwn=0");
+            }
+        }, ACTORS);
+    }
+}
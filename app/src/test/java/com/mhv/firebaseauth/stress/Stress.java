@@ -0,0 +1,113 @@
+package com.mhv.firebaseauth.stress;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Minimal jcstress style harness for plain JUnit.
+ *
+ * A {@link Scenario} is run for many rounds. Each round gets a fresh state, every actor
+ * thread is released on the same barrier so they race as closely as possible, and once
+ * all of them are done the arbiter turns the final state into an outcome string. The
+ * outcomes of all rounds are tallied, and any outcome the scenario marks as forbidden
+ * fails the test with the full tally.
+ *
+ * The number of rounds defaults to {@link #DEFAULT_ROUNDS} and can be raised with
+ * {@code -Dstress.rounds=N} for longer soak runs.
+ */
+public final class Stress {
+
+    public static final int DEFAULT_ROUNDS = 5000;
+
+    public interface Scenario<S> {
+
+        S newState() throws Exception;
+
+        /**
+         * Runs the actor with the given index against the shared state.
+         */
+        void actor(S state, int actor) throws Exception;
+
+        /**
+         * Inspects the state after every actor finished and describes the outcome.
+         */
+        String arbiter(S state) throws Exception;
+
+        boolean isForbidden(String outcome);
+    }
+
+    private Stress() {
+    }
+
+    public static int rounds() {
+        return Integer.getInteger("stress.rounds", DEFAULT_ROUNDS);
+    }
+
+    public static <S> Map<String, Integer> run(final Scenario<S> scenario, final int actors)
+            throws Exception {
+        final int rounds = rounds();
+        final CyclicBarrier start = new CyclicBarrier(actors + 1);
+        final CyclicBarrier end = new CyclicBarrier(actors + 1);
+        final AtomicReference<S> state = new AtomicReference<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        final Thread[] threads = new Thread[actors];
+        for (int i = 0; i < actors; i++) {
+            final int actor = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < rounds; round++) {
+                            start.await();
+                            try {
+                                scenario.actor(state.get(), actor);
+                            } catch (Throwable t) {
+                                failure.compareAndSet(null, t);
+                            }
+                            end.await();
+                        }
+                    } catch (InterruptedException | BrokenBarrierException e) {
+                        // Test is being torn down.
+                    }
+                }
+            }, "stress-actor-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        final Map<String, Integer> outcomes = new TreeMap<>();
+        try {
+            for (int round = 0; round < rounds; round++) {
+                state.set(scenario.newState());
+                start.await(30, TimeUnit.SECONDS);
+                end.await(30, TimeUnit.SECONDS);
+
+                if (failure.get() != null) {
+                    throw new AssertionError("Actor failed in round " + round, failure.get());
+                }
+
+                final String outcome = scenario.arbiter(state.get());
+                final Integer count = outcomes.get(outcome);
+                outcomes.put(outcome, count == null ? 1 : count + 1);
+            }
+        } finally {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+
+        for (String outcome : outcomes.keySet()) {
+            if (scenario.isForbidden(outcome)) {
+                fail("Forbidden outcome \"" + outcome + "\" observed, all outcomes: " + outcomes);
+            }
+        }
+        return outcomes;
+    }
+}
@@ -0,0 +1,154 @@
+package com.mhv.firebaseauth.token;
+
+import com.mhv.firebaseauth.LocalBackend;
+import com.mhv.firebaseauth.util.FakeTicker;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class IdTokenProviderTest {
+
+    private static final long LIFETIME_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final FakeTicker mTicker = new FakeTicker();
+    private final LocalBackend mBackend = new LocalBackend(20);
+    private final IdTokenProvider mProvider =
+            new IdTokenProvider(mExecutor, WINDOW_MILLIS, mTicker);
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void validTokenIsServedWithoutNetwork() throws Exception {
+        mProvider.setSource(new BackendSource(mBackend, "alice"));
+
+        final String token = mProvider.getToken();
+        assertNotNull(token);
+
+        mTicker.advance(TimeUnit.MINUTES.toNanos(30));
+        assertEquals(token, mProvider.getToken());
+        assertEquals(token, mProvider.peekToken());
+        assertEquals(1, mBackend.calls());
+    }
+
+    @Test
+    public void nearExpiryRefreshesOnceInTheBackground() throws Exception {
+        mProvider.setSource(new BackendSource(mBackend, "alice"));
+        final String first = mProvider.getToken();
+
+        mTicker.advance(TimeUnit.MILLISECONDS.toNanos(LIFETIME_MILLIS - WINDOW_MILLIS + 1));
+        for (int i = 0; i < 10; i++) {
+            // Still valid, so the old token is returned while the refresh runs.
+            assertEquals(first, mProvider.getToken());
+        }
+
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+
+        final String second = mProvider.getToken();
+        assertFalse(first.equals(second));
+        assertEquals(2, mBackend.idTokensIssued());
+    }
+
+    @Test
+    public void concurrentCallersShareOneRefresh() throws Exception {
+        mProvider.setSource(new BackendSource(mBackend, "alice"));
+
+        final ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(callers.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return mProvider.getToken();
+                    }
+                }));
+            }
+
+            final String token = results.get(0).get();
+            for (Future<String> result : results) {
+                assertEquals(token, result.get());
+            }
+            assertEquals(1, mBackend.idTokensIssued());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void invalidatedTokenIsReplaced() throws Exception {
+        mProvider.setSource(new BackendSource(mBackend, "alice"));
+        final String first = mProvider.getToken();
+
+        mProvider.invalidate(first);
+        assertNull(mProvider.peekToken());
+        assertFalse(first.equals(mProvider.getToken()));
+    }
+
+    @Test
+    public void invalidatingNothingIsHarmless() throws Exception {
+        mProvider.invalidate(null);
+        mProvider.setSource(new BackendSource(mBackend, "alice"));
+        final String token = mProvider.getToken();
+
+        mProvider.invalidate(null);
+        mProvider.invalidate("unknown");
+        assertEquals(token, mProvider.peekToken());
+    }
+
+    @Test
+    public void signingOutDropsTheToken() throws Exception {
+        mProvider.setSource(new BackendSource(mBackend, "alice"));
+        mProvider.getToken();
+
+        mProvider.clear();
+        assertNull(mProvider.peekToken());
+        assertNull(mProvider.getToken());
+    }
+
+    static class BackendSource implements IdTokenProvider.Source {
+
+        private final LocalBackend mBackend;
+        private final String mUid;
+        private String mCached;
+
+        BackendSource(LocalBackend backend, String uid) {
+            mBackend = backend;
+            mUid = uid;
+        }
+
+        @Override
+        public synchronized IdTokenProvider.IdToken fetch(boolean forceRefresh)
+                throws Exception {
+            // Like FirebaseUser.getIdToken(), only go to the backend when forced or when
+            // there's nothing cached yet.
+            if (forceRefresh || mCached == null) {
+                mCached = mBackend.getIdToken(mUid);
+            }
+            return new IdTokenProvider.IdToken(mCached, LIFETIME_MILLIS);
+        }
+
+        @Override
+        public String accountName() {
+            return mUid;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.mhv.firebaseauth.token;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RevocationListTest {
+
+    private static final int BENCHMARK_ENTRIES = 1000000;
+
+    private static final long NOW = 1500000000000L;
+    private static final long EXPIRES = NOW + TimeUnit.HOURS.toMillis(1);
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("revoked", ".bin");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void revokedTokensSurviveReload() throws Exception {
+        final RevocationList list = RevocationList.load(mFile, 100, 0.01, NOW);
+        assertFalse(list.isRevoked("token-a"));
+
+        list.revoke("token-a", EXPIRES);
+        list.revoke("token-a", EXPIRES);
+        list.revoke("token-b", EXPIRES);
+        assertTrue(list.isRevoked("token-a"));
+        assertTrue(list.isRevoked("token-b"));
+        assertFalse(list.isRevoked("token-c"));
+        assertEquals(2, list.size());
+        list.close();
+
+        final RevocationList reloaded = RevocationList.load(mFile, 100, 0.01, NOW);
+        assertTrue(reloaded.isRevoked("token-a"));
+        assertTrue(reloaded.isRevoked("token-b"));
+        assertFalse(reloaded.isRevoked("token-c"));
+        assertEquals(2, reloaded.size());
+
+        // Appending after a reload keeps the existing entries.
+        reloaded.revoke("token-c", EXPIRES);
+        reloaded.close();
+        assertEquals(3, RevocationList.load(mFile, 100, 0.01, NOW).size());
+    }
+
+    @Test
+    public void truncatedRecordIsIgnored() throws Exception {
+        final RevocationList list = RevocationList.load(mFile, 100, 0.01, NOW);
+        list.revoke("token-a", EXPIRES);
+        list.revoke("token-b", EXPIRES);
+        list.close();
+
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        final RevocationList reloaded = RevocationList.load(mFile, 100, 0.01, NOW);
+        assertTrue(reloaded.isRevoked("token-a"));
+        assertFalse(reloaded.isRevoked("token-b"));
+    }
+
+    @Test
+    public void unreadableFileIsReplaced() throws Exception {
+        final FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        out.close();
+
+        try {
+            RevocationList.load(mFile, 100, 0.01, NOW);
+            fail("Corrupt file was loaded");
+        } catch (IOException expected) {
+        }
+
+        final RevocationList list = RevocationList.loadOrReset(mFile, 100, 0.01, NOW);
+        assertEquals(0, list.size());
+        list.revoke("token-a", EXPIRES);
+        list.close();
+
+        // Revocations made after the reset are persisted again.
+        assertTrue(RevocationList.load(mFile, 100, 0.01, NOW).isRevoked("token-a"));
+    }
+
+    @Test
+    public void expiredTokensAreCompactedOnLoad() throws Exception {
+        final RevocationList list = RevocationList.load(mFile, 100, 0.01, NOW);
+        list.revoke("token-a", NOW + 1000);
+        list.revoke("token-b", EXPIRES);
+        list.close();
+        final long length = mFile.length();
+
+        final RevocationList reloaded = RevocationList.load(mFile, 100, 0.01, NOW + 1000);
+        assertFalse(reloaded.isRevoked("token-a"));
+        assertTrue(reloaded.isRevoked("token-b"));
+        assertEquals(1, reloaded.size());
+        assertTrue(mFile.length() < length);
+
+        // The compacted file still takes appends.
+        reloaded.revoke("token-c", EXPIRES);
+        reloaded.close();
+        final RevocationList appended = RevocationList.load(mFile, 100, 0.01, NOW + 1000);
+        assertTrue(appended.isRevoked("token-b"));
+        assertTrue(appended.isRevoked("token-c"));
+        assertEquals(2, appended.size());
+    }
+
+    @Test
+    public void missPathAtOneMillionEntries() throws Exception {
+        final RevocationList list = RevocationList.inMemory(BENCHMARK_ENTRIES, 0.01);
+        final StringBuilder token = new StringBuilder("eyJhbGciOiJSUzI1NiJ9.revoked.");
+        final int prefix = token.length();
+        for (int i = 0; i < BENCHMARK_ENTRIES; i++) {
+            token.setLength(prefix);
+            token.append(i);
+            list.revoke(token.toString(), EXPIRES);
+        }
+
+        // Every lookup is a token the list has never seen, like real traffic. Only the
+        // Bloom filter's false positives may go on to the exact set.
+        final StringBuilder miss = new StringBuilder("eyJhbGciOiJSUzI1NiJ9.valid.");
+        final int missPrefix = miss.length();
+        int revoked = 0;
+        for (int i = 0; i < BENCHMARK_ENTRIES; i++) {
+            miss.setLength(missPrefix);
+            miss.append(i);
+            if (list.isRevoked(miss.toString())) {
+                revoked++;
+            }
+        }
+
+        assertEquals(0, revoked);
+        // The filter is rounded up to a power of two, so it does better than the
+        // configured 1%. Its measured rate has to match what its size predicts.
+        final double passThroughRate = list.exactLookups() / (double) BENCHMARK_ENTRIES;
+        final double expected = list.expectedPassThroughRate();
+        final String rates = "filter let " + passThroughRate + " of misses through, expected "
+                + expected;
+        assertTrue(rates, expected <= 0.01);
+        assertTrue(rates, passThroughRate > expected / 2 && passThroughRate < expected * 2);
+    }
+}
@@ -0,0 +1,158 @@
+package com.mhv.firebaseauth.token;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class TokenSnapshotStoreTest {
+
+    private static final int BENCHMARK_READS = 2000;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("snapshot", ".bin");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    private static String token(String uid, String exp) {
+        final Charset utf8 = Charset.forName("UTF-8");
+        final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"RS256\"}".getBytes(utf8)) + "."
+                + encoder.encodeToString(("{\"uid\":\"" + uid + "\",\"exp\":" + exp + "}")
+                        .getBytes(utf8)) + ".signature";
+    }
+
+    @Test
+    public void missingSnapshotIsEmpty() throws Exception {
+        assertSame(TokenSnapshot.EMPTY, new TokenSnapshotStore(mFile).read());
+    }
+
+    @Test
+    public void entriesSurviveReload() throws Exception {
+        final TokenSnapshotStore store = new TokenSnapshotStore(mFile);
+        store.put(TokenSnapshot.Entry.fromToken("a@example.com", token("uid-a", "\"2000000000\"")));
+        store.put(TokenSnapshot.Entry.fromToken("b@example.com", token("uid-b", "2000000001")));
+        store.put(TokenSnapshot.Entry.fromToken("a@example.com", token("uid-a2", "2000000002")));
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+
+        final TokenSnapshot snapshot = new TokenSnapshotStore(mFile).read();
+        assertEquals(2, snapshot.getEntries().size());
+
+        final TokenSnapshot.Entry a = snapshot.get("a@example.com");
+        assertEquals("uid-a2", a.getUid());
+        assertEquals(2000000002000L, a.getExpiresAtMillis());
+        assertTrue(a.matches(token("uid-a2", "2000000002")));
+        assertFalse(a.matches(token("uid-a", "2000000000")));
+        assertFalse(a.matches(null));
+
+        final TokenSnapshot.Entry b = snapshot.get("b@example.com");
+        assertEquals("uid-b", b.getUid());
+        assertEquals(2000000001000L, b.getExpiresAtMillis());
+        assertFalse(b.isExpired(System.currentTimeMillis()));
+        assertTrue(b.isExpired(2000000001000L));
+
+        store.remove("a@example.com");
+        assertNull(new TokenSnapshotStore(mFile).read().get("a@example.com"));
+        assertNotNull(new TokenSnapshotStore(mFile).read().get("b@example.com"));
+    }
+
+    @Test
+    public void expiryIsReadWithoutAnAccount() throws Exception {
+        // Minted tokens carry exp as a string, Firebase's as a number.
+        assertEquals(2000000000000L, TokenSnapshot.expiresAtMillis(token("uid-a", "\"2000000000\"")));
+        assertEquals(2000000001000L, TokenSnapshot.expiresAtMillis(token("uid-a", "2000000001")));
+    }
+
+    @Test(expected = IOException.class)
+    public void expiryOfMalformedTokenIsAnIOException() throws Exception {
+        TokenSnapshot.expiresAtMillis("not-a-jwt");
+    }
+
+    @Test(expected = IOException.class)
+    public void tokenWithoutExpIsRejected() throws Exception {
+        TokenSnapshot.Entry.fromToken("a@example.com", token("uid-a", "null"));
+    }
+
+    @Test
+    public void corruptSnapshotIsReported() throws Exception {
+        new TokenSnapshotStore(mFile).put(
+                new TokenSnapshot.Entry("a@example.com", "uid-a", 1L, 11L, 13L));
+
+        // Flip one bit in the middle of the uid.
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(file.length() - 6);
+        final int b = file.read();
+        file.seek(file.length() - 6);
+        file.write(b ^ 1);
+        file.close();
+        assertUnreadable();
+
+        // A store that can't read the old snapshot starts over on the next update.
+        final TokenSnapshotStore store = new TokenSnapshotStore(mFile);
+        store.put(new TokenSnapshot.Entry("b@example.com", "uid-b", 1L, 17L, 19L));
+        final TokenSnapshot snapshot = new TokenSnapshotStore(mFile).read();
+        assertEquals(1, snapshot.getEntries().size());
+        assertEquals(17L, snapshot.get("b@example.com").getTokenHash1());
+        assertEquals(19L, snapshot.get("b@example.com").getTokenHash2());
+    }
+
+    @Test
+    public void truncatedSnapshotIsReported() throws Exception {
+        new TokenSnapshotStore(mFile).put(
+                new TokenSnapshot.Entry("a@example.com", "uid-a", 1L, 11L, 13L));
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+        assertUnreadable();
+
+        final RandomAccessFile empty = new RandomAccessFile(mFile, "rw");
+        empty.setLength(2);
+        empty.close();
+        assertUnreadable();
+    }
+
+    private void assertUnreadable() throws IOException {
+        final TokenSnapshotStore store = new TokenSnapshotStore(mFile);
+        try {
+            store.read();
+            fail("Expected the snapshot to be rejected");
+        } catch (IOException expected) {
+        }
+        // Reported once, then dropped instead of being parsed again on every read.
+        assertFalse(mFile.exists());
+        assertSame(TokenSnapshot.EMPTY, store.read());
+    }
+
+    @Test
+    public void benchmarkColdRead() throws Exception {
+        final TokenSnapshotStore store = new TokenSnapshotStore(mFile);
+        for (int i = 0; i < 4; i++) {
+            store.put(new TokenSnapshot.Entry("user" + i + "@example.com", "uid-" + i,
+                    2000000000000L, i, 2 * i + 1));
+        }
+
+        // Fresh store every time, like a new process.
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_READS; i++) {
+            assertEquals(4, new TokenSnapshotStore(mFile).read().getEntries().size());
+        }
+        final double microsPerRead = (System.nanoTime() - start) / 1000.0 / BENCHMARK_READS;
+        assertTrue("reads should take well under a millisecond", microsPerRead < 1000);
+    }
+}
@@ -0,0 +1,124 @@
+package com.mhv.firebaseauth.trace;
+
+import com.mhv.firebaseauth.LocalBackend;
+import com.mhv.firebaseauth.util.FakeTicker;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AuthTraceReplayTest {
+
+    @Test
+    public void recordedEventsRoundTrip() throws Exception {
+        final FakeTicker ticker = new FakeTicker();
+        final AuthTraceRecorder recorder = new AuthTraceRecorder(ticker);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recorder.start(out);
+
+        final long loginStart = recorder.now();
+        ticker.advance(TimeUnit.MILLISECONDS.toNanos(5));
+        final long tokenStart = recorder.now();
+        ticker.advance(TimeUnit.MILLISECONDS.toNanos(2));
+        // Finishes after the getAuthToken that started later.
+        recorder.record(AuthTrace.TYPE_GET_AUTH_TOKEN, AuthTrace.OUTCOME_CACHED,
+                "a@example.com", tokenStart);
+        ticker.advance(TimeUnit.MILLISECONDS.toNanos(10));
+        recorder.record(AuthTrace.TYPE_LOGIN, AuthTrace.OUTCOME_SUCCESS,
+                "b@example.com", loginStart);
+        recorder.stop();
+
+        final List<AuthTrace.Event> events =
+                AuthTraceReader.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(2, events.size());
+        assertEquals(AuthTrace.TYPE_LOGIN, events.get(0).type);
+        assertEquals(0, events.get(0).startNanos);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(17), events.get(0).durationNanos);
+        assertEquals(AuthTrace.accountHash("b@example.com"), events.get(0).account);
+
+        assertEquals(AuthTrace.TYPE_GET_AUTH_TOKEN, events.get(1).type);
+        assertEquals(AuthTrace.OUTCOME_CACHED, events.get(1).outcome);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), events.get(1).startNanos);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2), events.get(1).durationNanos);
+    }
+
+    @Test
+    public void traceDoesNotContainAccountNames() throws Exception {
+        final AuthTraceRecorder recorder = new AuthTraceRecorder(new FakeTicker());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recorder.start(out);
+        recorder.record(AuthTrace.TYPE_LOGIN, AuthTrace.OUTCOME_SUCCESS,
+                "secret@example.com", recorder.now());
+        recorder.stop();
+
+        assertFalse(new String(out.toByteArray(), "ISO-8859-1").contains("secret"));
+    }
+
+    @Test
+    public void replayingOnASlowerBackendShowsUpInTheDiff() throws Exception {
+        final List<AuthTrace.Event> trace = syntheticTrace(40);
+
+        final ReplayReport fast = new AuthTraceReplayer(
+                new BackendTarget(new LocalBackend(1)), 4).replay(trace, 0);
+        final ReplayReport slow = new AuthTraceReplayer(
+                new BackendTarget(new LocalBackend(10)), 4).replay(trace, 0);
+
+        assertEquals(40, fast.events());
+        assertEquals(40, slow.events());
+        assertEquals(0, fast.outcomeMismatches());
+        assertTrue(slow.overall().percentileNanos(50) > fast.overall().percentileNanos(50));
+        assertTrue(slow.throughputPerSecond() < fast.throughputPerSecond());
+        assertTrue(slow.diff(fast).contains("login"));
+    }
+
+    @Test
+    public void replayHonoursScaledTiming() throws Exception {
+        final List<AuthTrace.Event> trace = syntheticTrace(5);
+        final long recordedSpan = trace.get(trace.size() - 1).startNanos;
+
+        final long start = System.nanoTime();
+        new AuthTraceReplayer(new BackendTarget(new LocalBackend(0)), 2).replay(trace, 2.0);
+        final long elapsed = System.nanoTime() - start;
+
+        assertTrue(elapsed >= recordedSpan / 2);
+        assertTrue(elapsed < recordedSpan);
+    }
+
+    private static List<AuthTrace.Event> syntheticTrace(int size) throws Exception {
+        final FakeTicker ticker = new FakeTicker();
+        final AuthTraceRecorder recorder = new AuthTraceRecorder(ticker);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recorder.start(out);
+        for (int i = 0; i < size; i++) {
+            final long start = recorder.now();
+            ticker.advance(TimeUnit.MILLISECONDS.toNanos(20));
+            recorder.record(i % 2 == 0 ? AuthTrace.TYPE_LOGIN : AuthTrace.TYPE_GET_AUTH_TOKEN,
+                    AuthTrace.OUTCOME_SUCCESS, "user" + (i % 3), start);
+        }
+        recorder.stop();
+        return AuthTraceReader.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static class BackendTarget implements AuthTraceReplayer.Target {
+
+        private final LocalBackend mBackend;
+
+        BackendTarget(LocalBackend backend) {
+            mBackend = backend;
+        }
+
+        @Override
+        public byte execute(AuthTrace.Event event) throws Exception {
+            final boolean ok = event.type == AuthTrace.TYPE_LOGIN
+                    ? mBackend.signIn("user" + event.account)
+                    : mBackend.getIdToken("user" + event.account) != null;
+            return ok ? AuthTrace.OUTCOME_SUCCESS : AuthTrace.OUTCOME_FAILURE;
+        }
+    }
+}
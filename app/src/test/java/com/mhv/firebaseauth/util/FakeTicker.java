@@ -0,0 +1,18 @@
+package com.mhv.firebaseauth.util;
+
+/**
+ * Manually advanced {@link Ticker} for tests.
+ */
+public class FakeTicker implements Ticker {
+
+    private volatile long mNow = 123456789L;
+
+    @Override
+    public long read() {
+        return mNow;
+    }
+
+    public synchronized void advance(long nanos) {
+        mNow += nanos;
+    }
+}
@@ -0,0 +1,202 @@
+package com.mhv.firebaseauth.util;
+
+import com.mhv.firebaseauth.LocalBackend;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+public class HedgedRequestsTest {
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void timeoutFollowsObservedLatency() throws Exception {
+        final AdaptiveTimeout timeout = new AdaptiveTimeout(100, 2.0,
+                TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.SECONDS.toNanos(10));
+        assertFalse(timeout.isWarm());
+        assertEquals(TimeUnit.SECONDS.toNanos(10), timeout.timeoutNanos());
+        assertEquals(-1, timeout.hedgeDelayNanos());
+
+        for (int i = 0; i < 100; i++) {
+            timeout.record(TimeUnit.MILLISECONDS.toNanos(i < 95 ? 10 : 50));
+        }
+
+        assertTrue(timeout.isWarm());
+        final long hedgeDelayMillis = TimeUnit.NANOSECONDS.toMillis(timeout.hedgeDelayNanos());
+        assertTrue(hedgeDelayMillis >= 9 && hedgeDelayMillis <= 12);
+        final long timeoutMillis = TimeUnit.NANOSECONDS.toMillis(timeout.timeoutNanos());
+        assertTrue(timeoutMillis >= 90 && timeoutMillis <= 120);
+    }
+
+    @Test
+    public void hedgingCutsTheTail() throws Exception {
+        final LatencyHistogram plain = run(false, 1.0);
+        final LatencyHistogram hedged = run(true, 1.0);
+
+        assertTrue("p99 " + hedged.percentileMillis(99) + " vs " + plain.percentileMillis(99),
+                hedged.percentileNanos(99) * 2 < plain.percentileNanos(99));
+    }
+
+    @Test
+    public void hedgingIsCappedByTheBudget() throws Exception {
+        final LocalBackend backend = new LocalBackend(2).withTail(0.5, 40);
+        final HedgedRequests requests = new HedgedRequests("test.capped",
+                warmTimeout(), true, 0.1);
+
+        final long before = AuthMetrics.getInstance().get("test.capped.hedged");
+        for (int i = 0; i < 100; i++) {
+            requests.execute(signIn(backend));
+        }
+        final long hedges = AuthMetrics.getInstance().get("test.capped.hedged") - before;
+
+        // Half the calls are slow, but hedges may only add ~10% on top (+ initial burst).
+        assertTrue("hedges: " + hedges, hedges > 0 && hedges <= 10 + 10);
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void slowBackendTimesOut() throws Exception {
+        final LocalBackend backend = new LocalBackend(500);
+        final HedgedRequests requests = new HedgedRequests("test.timeout",
+                new AdaptiveTimeout(10, 1.0, TimeUnit.MILLISECONDS.toNanos(1),
+                        TimeUnit.MILLISECONDS.toNanos(50)), false, 0);
+        requests.execute(signIn(backend));
+    }
+
+    @Test
+    public void failureIsReported() throws Exception {
+        final LocalBackend backend = new LocalBackend(1);
+        backend.setFailing(true);
+        final HedgedRequests requests = new HedgedRequests("test.failure",
+                warmTimeout(), true, 1.0);
+        try {
+            requests.execute(signIn(backend));
+            fail();
+        } catch (TimeoutException e) {
+            fail("Failure should not be reported as a timeout");
+        } catch (Exception e) {
+            assertEquals("Backend unavailable", e.getMessage());
+        }
+    }
+
+    @Test
+    public void primaryFailingAroundTheHedgeDoesNotEndTheRace() throws Exception {
+        final AdaptiveTimeout timeout = warmTimeout();
+        final HedgedRequests requests = new HedgedRequests("test.failing_primary",
+                timeout, true, 1.0);
+        final long hedgeDelayNanos = timeout.hedgeDelayNanos();
+
+        for (int i = 0; i < 200; i++) {
+            final AtomicInteger starts = new AtomicInteger();
+            // The primary fails right around the hedge delay, any hedge succeeds.
+            final HedgedRequests.Attempt<Boolean> attempt =
+                    new HedgedRequests.Attempt<Boolean>() {
+                        @Override
+                        public void start(final HedgedRequests.Callback<Boolean> callback) {
+                            final boolean primary = starts.incrementAndGet() == 1;
+                            mExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (primary) {
+                                        LockSupport.parkNanos(hedgeDelayNanos);
+                                        callback.onFailure(new IllegalStateException("primary"));
+                                    } else {
+                                        LockSupport.parkNanos(hedgeDelayNanos * 3);
+                                        callback.onSuccess(true);
+                                    }
+                                }
+                            });
+                        }
+                    };
+            try {
+                assertTrue(requests.execute(attempt));
+                assertEquals(2, starts.get());
+            } catch (IllegalStateException e) {
+                // Fine as long as no hedge was sent, otherwise its answer was dropped.
+                assertEquals(1, starts.get());
+            }
+        }
+    }
+
+    @Test
+    public void timedOutAttemptIsRecordedOnce() throws Exception {
+        final AtomicInteger samples = new AtomicInteger();
+        final AdaptiveTimeout timeout = new AdaptiveTimeout(10, 1.0,
+                TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(30)) {
+            @Override
+            public void record(long latencyNanos) {
+                samples.incrementAndGet();
+                super.record(latencyNanos);
+            }
+        };
+        final LocalBackend backend = new LocalBackend(60);
+        final HedgedRequests requests = new HedgedRequests("test.recorded_once", timeout,
+                false, 0);
+        try {
+            requests.execute(signIn(backend));
+            fail();
+        } catch (TimeoutException expected) {
+        }
+
+        // Let the late answer arrive.
+        while (backend.inFlight() > 0) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(20);
+        assertEquals(1, samples.get());
+    }
+
+    private LatencyHistogram run(boolean hedging, double ratio) throws Exception {
+        final LocalBackend backend = new LocalBackend(2).withTail(0.05, 100);
+        final HedgedRequests requests = new HedgedRequests("test.tail", warmTimeout(),
+                hedging, ratio);
+        final LatencyHistogram latencies = new LatencyHistogram();
+        for (int i = 0; i < 200; i++) {
+            final long start = System.nanoTime();
+            requests.execute(signIn(backend));
+            latencies.record(System.nanoTime() - start);
+        }
+        return latencies;
+    }
+
+    // Primed with a fast backend so the p95 hedge delay is known from the first call.
+    private static AdaptiveTimeout warmTimeout() {
+        final AdaptiveTimeout timeout = new AdaptiveTimeout(20, 4.0,
+                TimeUnit.MILLISECONDS.toNanos(500), TimeUnit.SECONDS.toNanos(5));
+        for (int i = 0; i < 20; i++) {
+            timeout.record(TimeUnit.MILLISECONDS.toNanos(3));
+        }
+        return timeout;
+    }
+
+    private HedgedRequests.Attempt<Boolean> signIn(final LocalBackend backend) {
+        return new HedgedRequests.Attempt<Boolean>() {
+            @Override
+            public void start(final HedgedRequests.Callback<Boolean> callback) {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            callback.onSuccess(backend.signIn("alice"));
+                        } catch (Exception e) {
+                            callback.onFailure(e);
+                        }
+                    }
+                });
+            }
+        };
+    }
+}
@@ -0,0 +1,64 @@
+package com.mhv.firebaseauth.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+
+    private final FakeTicker mTicker = new FakeTicker();
+
+    @Test
+    public void perKeyBurstIsEnforced() throws Exception {
+        RateLimiter limiter = new RateLimiter(16, 1.0, 3, 100.0, 100, mTicker);
+
+        assertTrue(limiter.tryAcquire("a@example.com"));
+        assertTrue(limiter.tryAcquire("a@example.com"));
+        assertTrue(limiter.tryAcquire("a@example.com"));
+        assertFalse(limiter.tryAcquire("a@example.com"));
+
+        // A different account still has its own budget.
+        assertTrue(limiter.tryAcquire("b@example.com"));
+    }
+
+    @Test
+    public void permitsRefillOverTime() throws Exception {
+        RateLimiter limiter = new RateLimiter(16, 2.0, 1, 100.0, 100, mTicker);
+
+        assertTrue(limiter.tryAcquire("a@example.com"));
+        assertFalse(limiter.tryAcquire("a@example.com"));
+
+        mTicker.advance(TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(limiter.tryAcquire("a@example.com"));
+        assertFalse(limiter.tryAcquire("a@example.com"));
+    }
+
+    @Test
+    public void globalLimitAppliesAcrossKeys() throws Exception {
+        RateLimiter limiter = new RateLimiter(16, 10.0, 10, 1.0, 2, mTicker);
+
+        assertTrue(limiter.tryAcquire("a@example.com"));
+        assertTrue(limiter.tryAcquire("b@example.com"));
+        assertFalse(limiter.tryAcquire("c@example.com"));
+    }
+
+    @Test
+    public void globalRejectionRefundsThePerKeyPermit() throws Exception {
+        // Slow per key buckets holding two permits, a fast global bucket holding one.
+        RateLimiter limiter = new RateLimiter(16, 1.0, 2, 1000.0, 1, mTicker);
+
+        assertTrue(limiter.tryAcquire("a@example.com"));
+        // Rejected by the global bucket, b's own permit must not be consumed.
+        assertFalse(limiter.tryAcquire("b@example.com"));
+
+        // Only the global bucket refills in time, b still needs both of its permits.
+        mTicker.advance(TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(limiter.tryAcquire("b@example.com"));
+        mTicker.advance(TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(limiter.tryAcquire("b@example.com"));
+        mTicker.advance(TimeUnit.MILLISECONDS.toNanos(1));
+        assertFalse(limiter.tryAcquire("b@example.com"));
+    }
+}